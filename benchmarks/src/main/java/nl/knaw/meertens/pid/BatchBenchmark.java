@@ -0,0 +1,76 @@
+package nl.knaw.meertens.pid;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The throughput, in upserts per second, of a batch as the CLI csv action runs
+ * it (a BatchUpserter), at several concurrency levels, against a
+ * MockHandleServer with and without added server latency.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class BatchBenchmark {
+
+    private static final int BATCH = 256;
+
+    @Param({"8", "2"})
+    public String version;
+
+    @Param({"1", "8", "32"})
+    public int concurrency;
+
+    @Param({"0", "10"})
+    public long latency;
+
+    private MockHandleServer mock;
+    private PIDService ps;
+
+    @Setup
+    public void setup() throws Exception {
+        XMLConfiguration server = BenchmarkSupport.config(this.version, "http://localhost:0" + BenchmarkSupport.path(this.version));
+        server.setProperty("mock.latency", this.latency);
+        server.setProperty("mock.threads", this.concurrency);
+        BenchmarkSupport.noDelay();
+        this.mock = new MockHandleServer(server, 0);
+        XMLConfiguration config = BenchmarkSupport.config(this.version, this.mock.getURI());
+        config.setProperty("pool.maxTotal", this.concurrency);
+        config.setProperty("pool.maxPerRoute", this.concurrency);
+        this.ps = new PIDService(config, null);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        this.ps.close();
+        this.mock.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long upsert() throws Exception {
+        try (BatchUpserter batch = new BatchUpserter(this.ps, BenchmarkSupport.PREFIX, this.concurrency, this.concurrency * 4, false, 0.0, (BatchUpserter.Result result) -> { })) {
+            for (int i = 0; i < BATCH; i++)
+                batch.submit(new BatchUpserter.Row(i, "batch-" + i, "https://www.example.org/batch/" + i));
+            batch.await();
+            return batch.getCount(BatchUpserter.Outcome.FAILED);
+        }
+    }
+}
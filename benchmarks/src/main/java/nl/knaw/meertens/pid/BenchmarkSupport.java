@@ -0,0 +1,78 @@
+package nl.knaw.meertens.pid;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.commons.configuration.XMLConfiguration;
+
+/*
+the configurations and credentials shared by the benchmarks
+*/
+final class BenchmarkSupport {
+
+    static final String PREFIX = "11.T1";
+
+    private BenchmarkSupport() {
+    }
+
+    /*
+    a production configuration for the API version, "8" or "2", at the URI
+    */
+    static XMLConfiguration config(String version, String uri) throws IOException {
+        XMLConfiguration config = new XMLConfiguration();
+        config.setProperty("URI", uri);
+        config.setProperty("HandlePrefix", PREFIX);
+        config.setProperty("email", "benchmark@example.org");
+        config.setProperty("status", "production");
+        if (version.equals("8")) {
+            config.setProperty("private_key", privateKey());
+            config.setProperty("private_certificate", certificate());
+        } else {
+            config.setProperty("hostName", "localhost");
+            config.setProperty("userName", "benchmark");
+            config.setProperty("password", "benchmark");
+        }
+        return config;
+    }
+
+    /*
+    let the JDK server of a MockHandleServer send a response without waiting for the client's delayed ACK;
+    it's read once, so call this before the first mock is created
+    */
+    static void noDelay() {
+        if (System.getProperty("sun.net.httpserver.nodelay") == null)
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    /*
+    the path of the API, where the mock server serves the handles
+    */
+    static String path(String version) {
+        return version.equals("8") ? "/api/handles/" : "/handles/";
+    }
+
+    /*
+    a self-signed key and certificate, only good for benchmarking the client side
+    */
+    static String privateKey() throws IOException {
+        return copy("benchmark-key.pem");
+    }
+
+    static String certificate() throws IOException {
+        return copy("benchmark-cert.pem");
+    }
+
+    private static String copy(String resource) throws IOException {
+        File file = File.createTempFile("epicify-", "-" + resource);
+        file.deleteOnExit();
+        try (InputStream in = BenchmarkSupport.class.getResourceAsStream(resource)) {
+            if (in == null)
+                throw new IOException("Benchmark resource[" + resource + "] is missing");
+            Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return file.getAbsolutePath();
+    }
+}
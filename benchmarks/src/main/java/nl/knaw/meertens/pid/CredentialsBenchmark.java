@@ -0,0 +1,51 @@
+package nl.knaw.meertens.pid;
+
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of the Handle v8 client credentials behind PIDService.getFactory():
+ * setting up the SSLContext from the PEM files, once per credentials or after
+ * a reload, against getting the current one, as every new connection does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CredentialsBenchmark {
+
+    private String privateKey;
+    private String certificate;
+    private HandleCredentials credentials;
+
+    @Setup
+    public void setup() throws Exception {
+        this.privateKey = BenchmarkSupport.privateKey();
+        this.certificate = BenchmarkSupport.certificate();
+        this.credentials = new HandleCredentials(this.privateKey, this.certificate, null);
+        this.credentials.getSSLContext();
+    }
+
+    @Benchmark
+    public SSLContext setupSSLContext() throws Exception {
+        return new HandleCredentials(this.privateKey, this.certificate, null).getSSLContext();
+    }
+
+    @Benchmark
+    public SSLContext currentSSLContext() throws Exception {
+        return this.credentials.getSSLContext();
+    }
+}
@@ -0,0 +1,75 @@
+package nl.knaw.meertens.pid;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The latency of single PIDService calls, end-to-end through the protocol and
+ * the transport: against the memory transport (no network, the client side
+ * only) and against a MockHandleServer over the connection pool (loopback
+ * HTTP/1.1, no added latency).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PIDServiceBenchmark {
+
+    @Param({"8", "2"})
+    public String version;
+
+    @Param({"memory", "mock"})
+    public String server;
+
+    private MockHandleServer mock;
+    private PIDService ps;
+    private String handle;
+
+    @Setup
+    public void setup() throws Exception {
+        XMLConfiguration config;
+        if (this.server.equals("mock")) {
+            BenchmarkSupport.noDelay();
+            this.mock = new MockHandleServer(BenchmarkSupport.config(this.version, "http://localhost:0" + BenchmarkSupport.path(this.version)), 0);
+            config = BenchmarkSupport.config(this.version, this.mock.getURI());
+        } else {
+            config = BenchmarkSupport.config(this.version, "http://localhost" + BenchmarkSupport.path(this.version));
+            config.setProperty("transport", "memory");
+        }
+        this.ps = new PIDService(config, null);
+        this.ps.upsertHandle("existing", "https://www.example.org/existing");
+        this.handle = BenchmarkSupport.PREFIX + "/existing";
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        this.ps.close();
+        if (this.mock != null)
+            this.mock.close();
+    }
+
+    @Benchmark
+    public HandleRecord getHandleRecord() throws Exception {
+        return this.ps.getHandleRecord(this.handle);
+    }
+
+    @Benchmark
+    public boolean upsertHandle() throws Exception {
+        return this.ps.upsertHandle("upserted", "https://www.example.org/upserted");
+    }
+}
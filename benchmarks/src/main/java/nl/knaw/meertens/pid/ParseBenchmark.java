@@ -0,0 +1,94 @@
+package nl.knaw.meertens.pid;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding a handle response: the streaming JsonReader into a HandleRecord, as
+ * PIDService does, against the earlier getJsonString and json-lib
+ * JSONObject/JSONArray.fromObject, for the Handle v8 and EPIC v2 formats.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+    private static final String HANDLE = BenchmarkSupport.PREFIX + "/0b1a6b3e-8d4c-4a5e-9f3a-2c1d7e6f5a4b";
+
+    private static final byte[] V8 = ("{\"responseCode\":1,\"handle\":\"" + HANDLE + "\",\"values\":["
+        + "{\"index\":1,\"type\":\"URL\",\"data\":{\"format\":\"string\",\"value\":\"https://www.example.org/collections/items/0b1a6b3e?lang=en&view=full\"},\"ttl\":86400,\"timestamp\":\"2024-01-31T12:00:00Z\"},"
+        + "{\"index\":2,\"type\":\"EMAIL\",\"data\":{\"format\":\"string\",\"value\":\"benchmark@example.org\"},\"ttl\":86400,\"timestamp\":\"2024-01-31T12:00:00Z\"},"
+        + "{\"index\":100,\"type\":\"HS_ADMIN\",\"data\":{\"format\":\"admin\",\"value\":{\"handle\":\"0.NA/" + BenchmarkSupport.PREFIX + "\",\"index\":200,\"permissions\":\"011111110011\"}},\"ttl\":86400,\"timestamp\":\"2024-01-31T12:00:00Z\"}"
+        + "]}").getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] V2 = ("["
+        + "{\"idx\":1,\"type\":\"URL\",\"parsed_data\":\"https://www.example.org/collections/items/0b1a6b3e?lang=en&view=full\",\"data\":\"aHR0cHM6Ly93d3cuZXhhbXBsZS5vcmcvY29sbGVjdGlvbnMvaXRlbXMvMGIxYTZiM2U=\",\"timestamp\":\"2024-01-31T12:00:00Z\",\"ttl_type\":0,\"ttl\":86400,\"refs\":[],\"privs\":\"rwr-\"},"
+        + "{\"idx\":2,\"type\":\"EMAIL\",\"parsed_data\":\"benchmark@example.org\",\"data\":\"YmVuY2htYXJrQGV4YW1wbGUub3Jn\",\"timestamp\":\"2024-01-31T12:00:00Z\",\"ttl_type\":0,\"ttl\":86400,\"refs\":[],\"privs\":\"rwr-\"},"
+        + "{\"idx\":100,\"type\":\"HS_ADMIN\",\"parsed_data\":{\"adminId\":\"0.NA/" + BenchmarkSupport.PREFIX + "\",\"adminIdIndex\":200,\"perms\":{\"add_handle\":true,\"delete_handle\":true}},\"data\":\"\",\"timestamp\":\"2024-01-31T12:00:00Z\",\"ttl_type\":0,\"ttl\":86400,\"refs\":[],\"privs\":\"rwr-\"}"
+        + "]").getBytes(StandardCharsets.UTF_8);
+
+    private PIDService ps;
+
+    @Setup
+    public void setup() throws Exception {
+        // only for getJsonString
+        this.ps = new PIDService(BenchmarkSupport.config("2", "http://localhost/handles/"), null, new MemoryHandleTransport("2", "http://localhost/handles/"));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        this.ps.close();
+    }
+
+    @Benchmark
+    public String handleJsonReader() throws Exception {
+        return HandleRecord.parseHandle(new JsonReader(new ByteArrayInputStream(V8)), HANDLE).getLocation();
+    }
+
+    @Benchmark
+    public String handleJsonLib() throws Exception {
+        JSONObject json = JSONObject.fromObject(this.ps.getJsonString(new ByteArrayInputStream(V8)));
+        JSONArray values = json.getJSONArray("values");
+        for (int i = 0; i < values.size(); i++) {
+            JSONObject value = values.getJSONObject(i);
+            if (value.getString("type").equals("URL"))
+                return value.getJSONObject("data").getString("value");
+        }
+        return null;
+    }
+
+    @Benchmark
+    public String epicJsonReader() throws Exception {
+        return HandleRecord.parseEpic(new JsonReader(new ByteArrayInputStream(V2)), HANDLE).getLocation();
+    }
+
+    @Benchmark
+    public String epicJsonLib() throws Exception {
+        JSONArray values = JSONArray.fromObject(this.ps.getJsonString(new ByteArrayInputStream(V2)));
+        for (int i = 0; i < values.size(); i++) {
+            JSONObject value = values.getJSONObject(i);
+            if (value.getString("type").equals("URL"))
+                return value.getString("parsed_data");
+        }
+        return null;
+    }
+}
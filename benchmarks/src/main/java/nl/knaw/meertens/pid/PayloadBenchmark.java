@@ -0,0 +1,55 @@
+package nl.knaw.meertens.pid;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building and writing the body of a create or update request, for the Handle
+ * v8 and EPIC v2 templates, with a plain ASCII location and one that needs
+ * escaping and UTF-8 encoding.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadBenchmark {
+
+    @Param({"8", "2"})
+    public String version;
+
+    @Param({"ascii", "escaped"})
+    public String location;
+
+    private HandlePayload.Template template;
+    private String url;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+
+    @Setup
+    public void setup() {
+        this.template = this.version.equals("8") ? HandlePayload.Template.handle(BenchmarkSupport.PREFIX, "benchmark@example.org") : HandlePayload.Template.epic("benchmark@example.org");
+        this.url = this.location.equals("ascii")
+            ? "https://www.example.org/collections/items/0b1a6b3e?lang=en&view=full"
+            : "https://www.example.org/collecties/été/\"items\"/0b1a6b3e?taal=nl&weergave=☃";
+    }
+
+    @Benchmark
+    public int write() throws Exception {
+        this.out.reset();
+        new HandlePayload(this.template, this.url, System.currentTimeMillis()).writeTo(this.out);
+        return this.out.size();
+    }
+}
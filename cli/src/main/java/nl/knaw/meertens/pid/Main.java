@@ -6,6 +6,7 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.Charset;    
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -38,16 +39,60 @@ import java.util.UUID;
 
 public class Main {
     
+    // a rough size of a CSV row (suffix,location), to size a new index without reading the CSV
+    private static final long CSV_ROW_BYTES = 80L;
+    
     public static void main(String[] args) {
         
         try {
         
+            int concurrency = 1;
+            File journalFile = null;
+            File indexFile = null;
+            boolean virtual = false;
+            double verify = 0.0;
+            List<String> params = new ArrayList<>();
+            for (int i=0;i<args.length;i++) {
+                // --threads is the old name of --concurrency
+                if ((args[i].equals("--concurrency") || args[i].equals("--threads")) && i+1<args.length) {
+                    String option = args[i];
+                    try {
+                        concurrency = Integer.parseInt(args[++i]);
+                    } catch(NumberFormatException e) {
+                        concurrency = 0;
+                    }
+                    if (concurrency < 1) {
+                        System.err.println(option+" needs a positive number!");
+                        System.exit(1);
+                    }
+                } else if (args[i].equals("--virtual")) {
+                    virtual = true;
+                } else if (args[i].equals("--verify") && i+1<args.length) {
+                    try {
+                        verify = Double.parseDouble(args[++i]);
+                    } catch(NumberFormatException e) {
+                        verify = -1.0;
+                    }
+                    if (verify < 0.0 || verify > 1.0) {
+                        System.err.println("--verify needs a rate between 0 and 1!");
+                        System.exit(1);
+                    }
+                } else if (args[i].equals("--journal") && i+1<args.length) {
+                    journalFile = new File(args[++i]);
+                } else if (args[i].equals("--index") && i+1<args.length) {
+                    indexFile = new File(args[++i]);
+                } else
+                    params.add(args[i]);
+            }
+            args = params.toArray(new String[params.size()]);
+
             if (args.length < 3) {
                 System.err.println("java -jar epicify.jar <options>");
                 System.err.println();
                 System.err.println("new handle   : <path to config> new <suffix>? <uri>");
                 System.err.println("get handle   : <path to config> get <prefix/suffix>");
                 System.err.println("update handle: <path to config> upd <prefix/suffix> <uri>");
+                System.err.println("               NOTE: --verify 1 reads the handle back to check the update");
                 System.err.println("delete handle: <path to config> del <prefix/suffix>");
                 System.err.println("               NOTE: there might be a nodelete policy active!");
                 System.err.println();
@@ -55,6 +100,22 @@ public class Main {
                 System.err.println("               NOTE: CSV columns: <suffix>,<uri>");
                 System.err.println("               NOTE: will do an upsert, i.e., insert for a new suffix");
                 System.err.println("                     and an update for an existing suffix");
+                System.err.println("               NOTE: --concurrency <N> upserts N rows of the batch at");
+                System.err.println("                     the same time; the server as a whole is limited");
+                System.err.println("                     by the <maxConcurrent> of the config");
+                System.err.println("               NOTE: --virtual runs each row on a virtual thread (Java 21+),");
+                System.err.println("                     still at most --concurrency rows at the same time");
+                System.err.println("               NOTE: --journal <FILE> records finished rows, and when rerun");
+                System.err.println("                     skips the rows it recorded as done");
+                System.err.println("               NOTE: --verify <RATE> reads back a sample of the upserted");
+                System.err.println("                     handles, e.g., 0.01 for 1% of the rows");
+                System.err.println("               NOTE: --index <FILE> lists the handles of the prefix first,");
+                System.err.println("                     and skips rows whose handle already refers to the");
+                System.err.println("                     location recorded in FILE by an earlier run");
+                System.err.println();
+                System.err.println("mock server  : <path to config> mock <port>");
+                System.err.println("               NOTE: serves the API of the config from memory at the path");
+                System.err.println("                     of its URI, see <mock> for latency and error injection");
                 System.exit(1);
             }
         
@@ -74,6 +135,27 @@ public class Main {
             }
 
             XMLConfiguration xml = new XMLConfiguration(config);
+            if (action.equals("mock")) {
+                int port = -1;
+                try {
+                    port = Integer.parseInt(args[2]);
+                } catch(NumberFormatException e) {
+                }
+                if (port < 0 || port > 65535) {
+                    System.err.println("mock server: needs a port!");
+                    System.exit(3);
+                }
+                // send the headers and body of a response at once, not held up by the client's delayed ACK
+                if (System.getProperty("sun.net.httpserver.nodelay") == null)
+                    System.setProperty("sun.net.httpserver.nodelay", "true");
+                final MockHandleServer mock = new MockHandleServer(xml, port);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    System.err.println("mock server: served "+mock.getRequestCount()+" requests, "+mock.getErrorCount()+" injected errors, "+mock.getStore().size()+" handles");
+                    mock.close();
+                }));
+                System.err.println("mock server: "+mock.getURI()+" (Ctrl-C to stop)");
+                return;
+            }
             PIDService ps = new PIDService(xml,null);
             
 //            System.out.println(args.length);
@@ -87,7 +169,7 @@ public class Main {
                         System.err.println("new handle: needs a URI!");
                         System.exit(3);
                     }
-                    String hdl = suf==null?ps.requestHandle(UUID.randomUUID().toString(), uri, version):ps.requestHandle(suf, uri, version);
+                    String hdl = suf==null?ps.requestHandle(uri):ps.requestHandle(suf, uri, version);
                     System.err.println("new handle: "+hdl+" -> "+uri);
                     System.out.println(hdl);
                 } else {
@@ -141,8 +223,8 @@ public class Main {
                     String hdl = args[2];
                     String uri = args[3];
                     ps.updateLocation(hdl,uri, version);
-                    String nw = ps.getPIDLocation(hdl, version);
-                    if (!nw.equals(uri)) {
+                    String nw = (verify>0.0?ps.getPrimaryLocation(hdl, version):uri);
+                    if (nw==null || !nw.equals(uri)) {
                         System.err.println("FATAL: failed to update handle["+hdl+"] to ["+uri+"]! It (still) refers to ["+nw+"].");
                         System.exit(3);
                     }
@@ -155,8 +237,8 @@ public class Main {
                     String hdl = args[2];
                     String uri = args[3];
                     ps.updateLocation(hdl,uri);
-                    String nw = ps.getPIDLocation(hdl);
-                    if (!nw.equals(uri)) {
+                    String nw = (verify>0.0?ps.getPrimaryLocation(hdl):uri);
+                    if (nw==null || !nw.equals(uri)) {
                         System.err.println("FATAL: failed to update handle["+hdl+"] to ["+uri+"]! It (still) refers to ["+nw+"].");
                         System.exit(3);
                     }
@@ -201,35 +283,86 @@ public class Main {
                     System.exit(3);
                 }
                 String prefix = xml.getString("HandlePrefix");
-                List<String> lines=Files.readAllLines(csv.toPath(), Charset.forName("UTF-8"));
-                int l =0;
-                for(String line:lines){
-                    l++;
-                    if (line.startsWith("#"))
-                        continue;
-                    String[] cols = line.split(",");
-                    if (cols.length!=2)
-                        System.err.println("ERROR: CSV["+csv.getAbsolutePath()+"]["+l+"] doesn't contain 2 columns!");
-                    String suffix = cols[0];
-                    String uri = cols[1];
-                    String hdl = prefix+"/"+suffix;
-                    String loc = ps.getPIDLocation(hdl);
-                    boolean nw = (loc == null);
-                    if (nw) {
-                        ps.requestHandle(suffix, uri);
-                    } else {
-                        ps.updateLocation(hdl, uri);
+                final String path = csv.getAbsolutePath();
+                final BatchJournal journal = (journalFile!=null?new BatchJournal(journalFile):null);
+                if (journal!=null) {
+                    if (journal.getResumed()>0)
+                        System.err.println("CSV["+path+"] resuming from journal["+journal.getFile().getAbsolutePath()+"] with "+journal.getResumed()+" rows done");
+                    // the journal is flushed per row, but close it cleanly on Ctrl-C
+                    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                        try {
+                            journal.close();
+                        } catch(IOException e) {
+                            System.err.println("ERROR: failed to close journal["+journal.getFile().getAbsolutePath()+"]: "+e);
+                        }
+                    }));
+                }
+                MappedHandleIndex index = null;
+                File listedFile = null;
+                if (indexFile!=null) {
+                    listedFile = new File(indexFile.getPath()+".new");
+                    Files.deleteIfExists(listedFile.toPath());
+                    try (MappedHandleIndex known = new MappedHandleIndex(indexFile)) {
+                        // size the listing for what the server had, or on a first run roughly for the rows of the CSV, by its size; it grows if need be
+                        long expected = known.size()>0?known.size():csv.length()/CSV_ROW_BYTES;
+                        final MappedHandleIndex listed = new MappedHandleIndex(listedFile, (int) Math.min(expected, Integer.MAX_VALUE));
+                        // what the server has now, with the locations we know we wrote
+                        long n = ps.listHandles((String suffix) -> listed.put(suffix, known.get(suffix)));
+                        System.err.println("CSV["+path+"] index: "+n+" handles under prefix["+prefix+"], "+(known.size()>0?known.size()+" recorded in index["+indexFile.getAbsolutePath()+"]":"none recorded before"));
+                        index = listed;
                     }
-                    loc = ps.getPIDLocation(hdl);
-                    if (!loc.equals(uri)) {
-                        System.err.println("ERROR: CSV["+csv.getAbsolutePath()+"]["+l+"] failed to upsert handle["+hdl+"] to ["+uri+"]! It (still) refers to ["+loc+"].");
+                }
+                try (CsvReader reader = new CsvReader(Files.newBufferedReader(csv.toPath(), Charset.forName("UTF-8")));
+                     BatchUpserter batch = new BatchUpserter(ps, prefix, concurrency, concurrency*4, virtual, verify, (BatchUpserter.Result res) -> {
+                    long n = res.getRow().getLine();
+                    if (journal!=null) {
+                        try {
+                            journal.record(res);
+                        } catch(IOException e) {
+                            System.err.println("ERROR: CSV["+path+"]["+n+"] couldn't be recorded in journal["+journal.getFile().getAbsolutePath()+"]: "+e);
+                        }
+                    }
+                    if (res.getOutcome() == BatchUpserter.Outcome.FAILED) {
+                        if (res.getError() != null)
+                            System.err.println("ERROR: CSV["+path+"]["+n+"] failed to upsert handle["+res.getHandle()+"] to ["+res.getRow().getLocation()+"]! "+res.getError());
+                        else
+                            System.err.println("ERROR: CSV["+path+"]["+n+"] failed to upsert handle["+res.getHandle()+"] to ["+res.getRow().getLocation()+"]! It (still) refers to ["+res.getLocation()+"].");
                     } else
-                        System.err.println("CSV["+csv.getAbsolutePath()+"]["+l+"] "+(nw?"new":"updated")+" handle: "+hdl+" -> "+loc);
+                        System.err.println("CSV["+path+"]["+n+"] "+res.getOutcome().name().toLowerCase()+" handle: "+res.getHandle()+" -> "+res.getLocation());
+                })) {
+                    batch.setIndex(index);
+                    try {
+                        List<String> cols;
+                        while ((cols = reader.next()) != null) {
+                            if (cols.size()!=2) {
+                                System.err.println("ERROR: CSV["+path+"]["+reader.getLine()+"] doesn't contain 2 columns!");
+                                continue;
+                            }
+                            if (journal!=null && journal.isDone(reader.getLine()))
+                                continue;
+                            batch.submit(new BatchUpserter.Row(reader.getLine(), cols.get(0), cols.get(1)));
+                        }
+                    } finally {
+                        // let the rows in flight finish, also when the CSV turns out to be malformed
+                        batch.await();
+                        if (index!=null) {
+                            index.close();
+                            Files.move(listedFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                        }
+                        System.err.println("CSV["+path+"] summary: "
+                            + batch.getCount(BatchUpserter.Outcome.NEW)+" new, "
+                            + batch.getCount(BatchUpserter.Outcome.UPDATED)+" updated, "
+                            + (index!=null?batch.getCount(BatchUpserter.Outcome.UNCHANGED)+" unchanged, ":"")
+                            + batch.getCount(BatchUpserter.Outcome.FAILED)+" failed"
+                            + (journal!=null?", "+journal.getSkipped()+" skipped as done before":""));
+                    }
                 }
             } else {
                 System.err.println("Unknown action!");
                 System.exit(4);
             }
+            
+            ps.close();
         
         } catch(Exception e) {
             System.err.println("FATAL: "+e);
@@ -0,0 +1,377 @@
+package nl.knaw.meertens.pid;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non-blocking variant of a PIDService: every call returns a CompletableFuture
+ * right away, and the requests are multiplexed by a few I/O threads instead
+ * of holding a thread each while waiting for the PID server.
+ *
+ * The requests go through the {@link HandleTransport} of the wrapped
+ * PIDService; for the default pool the number of concurrent requests is
+ * bounded by its {@code <async>} configuration, see {@link HandleConnectionPool}.
+ *
+ * Requests are built and responses interpreted by the protocol of the wrapped
+ * PIDService, so both behave the same, including the test mode.
+ */
+public class AsyncPIDService implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncPIDService.class.getName());
+
+    public static final int DEFAULT_MAX_TOTAL = 100;
+    public static final int DEFAULT_MAX_PER_ROUTE = 100;
+
+    private final PIDService ps;
+    private final HandleProtocol protocol;
+    private final HandleTransport transport;
+
+    public AsyncPIDService(PIDService ps) throws IOException {
+        this.ps = ps;
+        this.protocol = ps.getProtocol();
+        this.transport = ps.getTransport();
+        logger.debug("AsyncPIDService ["+this.protocol.getVersion()+"]["+this.transport.getClass().getSimpleName()+"]");
+    }
+
+    public CompletableFuture<String> requestHandle(String a_location) {
+        return requestHandle(UUID.randomUUID().toString(), a_location, true);
+    }
+
+    public CompletableFuture<String> requestHandle(String uuid, String a_location) {
+        return requestHandle(uuid, a_location, false);
+    }
+
+    private CompletableFuture<String> requestHandle(String uuid, String a_location, boolean minted) {
+        if (this.ps.isTest()) {
+            logger.info("[TESTMODE"+(this.ps.getVersion().equals("8")?" 8":"")+"] Created Handle=["+"PIDManager_"+ a_location+"] for location["+a_location+"]");
+            return CompletableFuture.completedFuture("PIDManager_"+ a_location);
+        }
+        try {
+            String handle = this.ps.getHandlePrefix() + "/" + uuid;
+            return invalidating(execute(HandleMetrics.CREATE, this.protocol.newCreateRequest(uuid, a_location), this.protocol.createHandler(uuid, a_location), createCheck(uuid, a_location, minted), handle), handle);
+        } catch (IOException e) {
+            return failed(e);
+        }
+    }
+
+    /**
+     * Create the handle, or overwrite it if it already exists, with a single PUT.
+     * Completes with true if the handle was created and false if it was updated.
+     */
+    public CompletableFuture<Boolean> upsertHandle(String suffix, String a_location) {
+        if (this.ps.isTest()) {
+            logger.info("[TESTMODE"+(this.ps.getVersion().equals("8")?" 8":"")+"] Upserted Handle=["+"PIDManager_"+ a_location+"] for location["+a_location+"]");
+            return CompletableFuture.completedFuture(true);
+        }
+        try {
+            return invalidating(execute(HandleMetrics.UPSERT, this.protocol.newUpsertRequest(suffix, a_location), this.protocol.upsertHandler(suffix, a_location)), this.ps.getHandlePrefix() + "/" + suffix);
+        } catch (IOException e) {
+            return failed(e);
+        }
+    }
+
+    public CompletableFuture<Void> updateLocation(String a_handle, String a_location) {
+        if (this.ps.isTest()) {
+            logger.info("[TESTMODE] Handled request location change for Handle=["+a_handle+"] to new location["+a_location+"] ... did nothing");
+            return CompletableFuture.completedFuture(null);
+        }
+        try {
+            return invalidating(undoPartialCreation(execute(HandleMetrics.UPDATE, this.protocol.newUpdateRequest(a_handle, a_location), this.protocol.updateHandler(a_handle, a_location))), this.ps.cacheKey(a_handle));
+        } catch (IOException e) {
+            return failed(e);
+        }
+    }
+
+    /**
+     * The location the handle refers to, or null if the handle doesn't exist.
+     */
+    public CompletableFuture<String> getPIDLocation(String a_handle) {
+        return getHandleRecord(a_handle).thenApply(AsyncPIDService::location);
+    }
+
+    /**
+     * All the values of the handle, or null if it doesn't exist.
+     */
+    public CompletableFuture<HandleRecord> getHandleRecord(String a_handle) {
+        final HandleCache cache = this.ps.getCache();
+        if (cache == null)
+            return resolve(a_handle);
+        final String key = this.ps.cacheKey(a_handle);
+        HandleCache.Entry entry = cache.get(key);
+        this.ps.getMetrics().cache(entry != null);
+        if (entry != null)
+            return CompletableFuture.completedFuture(entry.getRecord());
+        final long stamp = cache.stamp(key);
+        return resolve(a_handle).thenApply((HandleRecord record) -> {
+            cache.put(key, record, stamp);
+            return record;
+        });
+    }
+
+    /*
+    get the handle from the fastest of the PID server and its mirrors, if any
+    */
+    private CompletableFuture<HandleRecord> resolve(String a_handle) {
+        HandleResolver resolver = this.ps.getResolver();
+        return resolver != null ? resolver.resolve(a_handle) : fetch(a_handle);
+    }
+
+    /*
+    get the handle from the PID server, bypassing the cache (and any mirrors)
+    */
+    CompletableFuture<HandleRecord> fetch(String a_handle) {
+        try {
+            return execute(HandleMetrics.GET, this.protocol.newGetRequest(a_handle), this.protocol.recordHandler(a_handle));
+        } catch (IOException e) {
+            return failed(e);
+        }
+    }
+
+    private static String location(HandleRecord record) {
+        try {
+            return PIDService.location(record);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    public CompletableFuture<Void> deleteHandle(String a_handle) {
+        if (this.ps.isTest()) {
+            logger.info("[TESTMODE] Handled request delete for Handle=["+a_handle+"] ... did nothing");
+            return CompletableFuture.completedFuture(null);
+        }
+        try {
+            final String handle = this.protocol.deletedHandle(a_handle);
+            return invalidating(execute(HandleMetrics.DELETE, this.protocol.newDeleteRequest(a_handle), this.protocol.deleteHandler(a_handle), () -> fetch(handle).thenApply((HandleRecord record) -> record == null), null), handle);
+        } catch (IOException e) {
+            return failed(e);
+        }
+    }
+
+    /*
+    the transport is shared with, and closed by, the PIDService
+    */
+    @Override
+    public void close() throws IOException {
+    }
+
+    /*
+    delete the handle a partial update created, without HS_ADMIN, as PIDService.updateLocation does, and fail anyway
+    */
+    private CompletableFuture<Void> undoPartialCreation(CompletableFuture<Void> update) {
+        return update.handle((Void v, Throwable t) -> t).thenCompose((Throwable t) -> {
+            if (t == null)
+                return CompletableFuture.completedFuture(null);
+            final Throwable cause = unwrap(t);
+            if (!(cause instanceof HandleV8Protocol.PartialCreationException))
+                return failed(cause);
+            final String suffix = ((HandleV8Protocol.PartialCreationException) cause).getSuffix();
+            return deleteHandle(suffix).handle((Void d, Throwable e) -> {
+                if (e != null)
+                    logger.error("Couldn't delete handle["+this.ps.getHandlePrefix()+"/"+suffix+"] created by a partial update", unwrap(e));
+                else
+                    logger.warn("Deleted handle["+this.ps.getHandlePrefix()+"/"+suffix+"] created by a partial update");
+                throw new CompletionException(cause);
+            });
+        });
+    }
+
+    /*
+    drop the handle from the cache once the change is done, or failed
+    */
+    private <T> CompletableFuture<T> invalidating(CompletableFuture<T> change, final String handle) {
+        return change.whenComplete((T value, Throwable t) -> this.ps.invalidate(handle));
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable e) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    /*
+    the async counterpart of PIDService.createCheck
+    */
+    private Supplier<CompletableFuture<Boolean>> createCheck(String uuid, final String a_location, final boolean minted) {
+        final String handle = this.ps.getHandlePrefix() + "/" + uuid;
+        return () -> fetch(handle).thenApply((HandleRecord record) -> {
+            String location = location(record);
+            if (location == null)
+                return false;
+            if (location.equals(a_location)) {
+                logger.info("Handle["+handle+"] for location ["+a_location+"] was created by an earlier attempt");
+                return true;
+            }
+            if (minted)
+                throw new CompletionException(new HandleCreationException("Handle creation failed. Minted handle["+handle+"] already exists for location["+location+"]"));
+            return false;
+        });
+    }
+
+    private <T> CompletableFuture<T> execute(String operation, HttpUriRequest request, PIDService.ResponseHandler<T> handler) {
+        return execute(operation, request, handler, null, null);
+    }
+
+    private <T> CompletableFuture<T> execute(String operation, HttpUriRequest request, PIDService.ResponseHandler<T> handler, Supplier<CompletableFuture<Boolean>> check, T done) {
+        return attempt(operation, request, handler, check, done, 1);
+    }
+
+    private <T> CompletableFuture<T> attempt(final String operation, final HttpUriRequest request, final PIDService.ResponseHandler<T> handler, final Supplier<CompletableFuture<Boolean>> check, final T done, final int attempt) {
+        final RetryPolicy retry = this.ps.getRetryPolicy();
+        final HandleMetrics metrics = this.ps.getMetrics();
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        CompletableFuture<Boolean> checked = (attempt > 1 && check != null) ? check.get() : CompletableFuture.completedFuture(false);
+        checked.thenCompose((Boolean isDone) -> {
+            if (isDone)
+                return CompletableFuture.completedFuture((Exchange) null);
+            CompletableFuture<Exchange> sending = send(operation, request);
+            // cancelling the result, e.g., of a hedged lookup that lost, aborts the request
+            cancelWith(result, sending);
+            return sending;
+        }).whenComplete((Exchange exchange, Throwable t) -> {
+            if (result.isCancelled())
+                return;
+            long backoff;
+            if (t != null) {
+                Throwable cause = unwrap(t);
+                if (!(cause instanceof IOException) || !retry.canRetry(attempt) || !retry.isRetryable((IOException) cause)) {
+                    result.completeExceptionally(cause);
+                    return;
+                }
+                backoff = retry.getBackoff(attempt, null);
+                metrics.retry(operation, this.protocol.getVersion(), attempt);
+                logger.warn("EPIC request "+request.getMethod()+" "+request.getURI()+" failed["+cause+"], retry "+attempt+"/"+(retry.getMaxAttempts()-1)+" in "+backoff+"ms");
+            } else if (exchange == null) {
+                result.complete(done);
+                return;
+            } else {
+                int status = exchange.response.getStatusLine().getStatusCode();
+                if (!(retry.isRetryable(status) && retry.canRetry(attempt))) {
+                    try {
+                        result.complete(handler.handle(exchange.response));
+                    } catch (Exception e) {
+                        result.completeExceptionally(e);
+                    }
+                    return;
+                }
+                backoff = retry.getBackoff(attempt, exchange.response);
+                metrics.retry(operation, this.protocol.getVersion(), attempt);
+                logger.warn("EPIC result[" + exchange.response.getStatusLine().toString()+"] for "+request.getMethod()+" "+request.getURI()+", retry "+attempt+"/"+(retry.getMaxAttempts()-1)+" in "+backoff+"ms");
+            }
+            RetryPolicy.delay(backoff)
+                .thenCompose((Void v) -> {
+                    if (result.isCancelled())
+                        return AsyncPIDService.<T>failed(new CancellationException());
+                    CompletableFuture<T> next = attempt(operation, request, handler, check, done, attempt + 1);
+                    cancelWith(result, next);
+                    return next;
+                })
+                .whenComplete((T value, Throwable e) -> {
+                    if (e != null)
+                        result.completeExceptionally(unwrap(e));
+                    else
+                        result.complete(value);
+                });
+        });
+        return result;
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        while (t instanceof CompletionException && t.getCause() != null)
+            t = t.getCause();
+        return t;
+    }
+
+    /*
+    cancel the work once the result is cancelled
+    */
+    static <T> void cancelWith(final CompletableFuture<T> result, final Future<?> work) {
+        result.whenComplete((T value, Throwable t) -> {
+            if (result.isCancelled())
+                work.cancel(false);
+        });
+    }
+
+    /*
+    a response, its body is buffered by the transport
+    */
+    private static class Exchange {
+        private final HttpResponse response;
+
+        Exchange(HttpResponse response) {
+            this.response = response;
+        }
+    }
+
+    /*
+    send the request once the throttle allows it; cancelling the future stops the wait, or aborts the request
+    */
+    private CompletableFuture<Exchange> send(final String operation, final HttpUriRequest request) {
+        final HandleThrottle throttle = this.ps.getThrottle();
+        if (throttle == null)
+            return send(operation, request, null);
+        final CompletableFuture<Exchange> future = new CompletableFuture<>();
+        final CompletableFuture<Void> acquired = throttle.acquireAsync();
+        cancelWith(future, acquired);
+        acquired.thenCompose((Void v) -> {
+            CompletableFuture<Exchange> sending = send(operation, request, throttle);
+            cancelWith(future, sending);
+            return sending;
+        }).whenComplete((Exchange exchange, Throwable t) -> {
+            if (t != null)
+                future.completeExceptionally(unwrap(t));
+            else
+                future.complete(exchange);
+        });
+        return future;
+    }
+
+    private CompletableFuture<Exchange> send(final String operation, final HttpUriRequest request, final HandleThrottle throttle) {
+        final CompletableFuture<Exchange> future = new CompletableFuture<>();
+        final HandleMetrics metrics = this.ps.getMetrics();
+        final HandleTrace trace = this.ps.getTrace();
+        final boolean traced = trace.sample();
+        if (traced)
+            trace.request(request);
+        final long start = System.nanoTime();
+        final CompletableFuture<HttpResponse> exchange = this.transport.executeAsync(request);
+        cancelWith(future, exchange);
+        exchange.whenComplete((HttpResponse response, Throwable t) -> {
+            int status = response != null ? response.getStatusLine().getStatusCode() : -1;
+            long nanos = System.nanoTime() - start;
+            if (traced) {
+                if (response != null)
+                    trace.response(request, response, nanos);
+                else
+                    trace.failure(request, t, nanos);
+            }
+            if (exchange.isCancelled()) {
+                // not a failure of the server, so it's neither throttled nor measured as one
+                if (throttle != null)
+                    throttle.cancel();
+                future.cancel(false);
+                return;
+            }
+            if (throttle != null)
+                throttle.release(status, nanos);
+            metrics.request(operation, this.protocol.getVersion(), status, nanos);
+            if (t != null)
+                future.completeExceptionally(t);
+            else
+                future.complete(new Exchange(response));
+        });
+        return future;
+    }
+}
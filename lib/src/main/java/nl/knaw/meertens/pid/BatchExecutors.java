@@ -0,0 +1,46 @@
+package nl.knaw.meertens.pid;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the executors that run batch and bulk PIDService operations.
+ *
+ * This is the Java 8 version, which only knows platform threads. When the
+ * library is built with JDK 21 or later, the multi-release jar also contains
+ * a version (in src/main/java21) that runs each task on a virtual thread.
+ */
+public class BatchExecutors {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchExecutors.class.getName());
+
+    private BatchExecutors() {
+    }
+
+    /**
+     * Can {@link #newExecutor(String, int, boolean)} create virtual threads on this JVM?
+     */
+    public static boolean isVirtualThreadsSupported() {
+        return false;
+    }
+
+    /**
+     * An executor with a fixed pool of daemon threads, or, if virtual is true and
+     * supported, one that starts a virtual thread per task. The concurrency of a
+     * virtual thread executor isn't bounded, so the caller has to limit it.
+     */
+    public static ExecutorService newExecutor(String name, int threads, boolean virtual) {
+        if (virtual)
+            logger.warn("Virtual threads need Java 21 or later, using "+threads+" platform threads");
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, (Runnable r) -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+}
@@ -0,0 +1,148 @@
+package nl.knaw.meertens.pid;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.BitSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only checkpoint journal of a batch run. Every finished row is
+ * written, and flushed, as a line
+ * <pre>
+ * &lt;line number&gt; TAB &lt;outcome&gt; TAB &lt;handle&gt;
+ * </pre>
+ * When the journal already exists, the rows it records as NEW, UPDATED or
+ * UNCHANGED are considered done, so a rerun of the same input can skip them and only
+ * process the remaining and FAILED rows. A torn last line, left by a
+ * crashed run, is cut off before the journal is read and appended to.
+ */
+public class BatchJournal implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchJournal.class.getName());
+
+    private final File file;
+    private final BitSet done = new BitSet();
+    private final Writer writer;
+    private long resumed = 0L;
+    private long skipped = 0L;
+
+    public BatchJournal(File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            repair();
+            load();
+        }
+        this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    }
+
+    /*
+    truncate the journal after its last newline, so a torn last line isn't read nor continued by the next record
+    */
+    private void repair() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(this.file, "rw")) {
+            long end = raf.length();
+            long pos = end;
+            byte[] buf = new byte[8192];
+            while (pos > 0) {
+                int n = (int) Math.min(buf.length, pos);
+                raf.seek(pos - n);
+                raf.readFully(buf, 0, n);
+                int i = n - 1;
+                while (i >= 0 && buf[i] != '\n')
+                    i--;
+                if (i >= 0) {
+                    pos = pos - n + i + 1;
+                    break;
+                }
+                pos -= n;
+            }
+            if (pos < end) {
+                logger.warn("Journal["+this.file+"] ends with a torn line, truncated from "+end+" to "+pos+" bytes");
+                raf.setLength(pos);
+            }
+        }
+    }
+
+    private void load() throws IOException {
+        long lines = 0L;
+        try (BufferedReader reader = Files.newBufferedReader(this.file.toPath(), StandardCharsets.UTF_8)) {
+            String entry;
+            while ((entry = reader.readLine()) != null) {
+                lines++;
+                String[] cols = entry.split("\t", 3);
+                if (cols.length != 3) {
+                    logger.warn("Journal["+this.file+"]["+lines+"] is incomplete, ignored");
+                    continue;
+                }
+                try {
+                    int line = Math.toIntExact(Long.parseLong(cols[0]));
+                    if (cols[1].equals(BatchUpserter.Outcome.FAILED.name()))
+                        this.done.clear(line);
+                    else
+                        this.done.set(line);
+                } catch (IllegalArgumentException | ArithmeticException e) {
+                    logger.warn("Journal["+this.file+"]["+lines+"] is invalid, ignored");
+                }
+            }
+        }
+        this.resumed = this.done.cardinality();
+        logger.info("Journal["+this.file+"] resumed with "+this.resumed+" rows done");
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Was the row at this line already done by a previous run? Every call that
+     * returns true is counted as a skipped row.
+     */
+    public synchronized boolean isDone(long line) {
+        if (line > Integer.MAX_VALUE || !this.done.get((int) line))
+            return false;
+        this.skipped++;
+        return true;
+    }
+
+    /**
+     * The number of rows a previous run recorded as done.
+     */
+    public long getResumed() {
+        return resumed;
+    }
+
+    /**
+     * The number of rows skipped in this run, because they were already done.
+     */
+    public synchronized long getSkipped() {
+        return skipped;
+    }
+
+    public synchronized void record(BatchUpserter.Result result) throws IOException {
+        long line = result.getRow().getLine();
+        this.writer.write(line + "\t" + result.getOutcome().name() + "\t" + result.getHandle() + "\n");
+        this.writer.flush();
+        if (line <= Integer.MAX_VALUE) {
+            if (result.getOutcome() == BatchUpserter.Outcome.FAILED)
+                this.done.clear((int) line);
+            else
+                this.done.set((int) line);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.writer.close();
+    }
+}
@@ -0,0 +1,260 @@
+package nl.knaw.meertens.pid;
+
+import java.io.Closeable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Upserts (suffix, location) rows concurrently using a PIDService: a new
+ * suffix is created and an existing one is updated, by a single PUT per row.
+ * A sample of the rows, given by the {@code verify} rate, is read back to
+ * check that the handle refers to the requested location.
+ *
+ * With a {@link HandleIndex} of what the server has, a row whose suffix
+ * already refers to the same location is UNCHANGED and isn't sent at all, and
+ * the index is kept up to date with the rows that are.
+ *
+ * At most {@code concurrency} rows are processed at the same time, and at
+ * most {@code window} rows are accepted but not finished yet;
+ * {@link #submit(Row)} blocks when the window is full, so a huge input is
+ * never queued as a whole. Note that the connection pool of the PIDService
+ * should allow as many connections per route as the concurrency.
+ *
+ * With platform threads the concurrency is the number of threads. With
+ * virtual threads (Java 21 or later, see {@link BatchExecutors}) every row
+ * gets its own thread, and a semaphore limits the rows in progress to the
+ * concurrency.
+ *
+ * Both limits are per upserter, i.e., per batch. Other batches and callers
+ * using the same Handle server aren't counted; what the server gets as a
+ * whole is limited by the {@code maxConcurrent} of its {@link HandleThrottle},
+ * which the PIDServices of a server share in a {@link PIDRouter}.
+ */
+public class BatchUpserter implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchUpserter.class.getName());
+
+    public enum Outcome { NEW, UPDATED, UNCHANGED, FAILED }
+
+    public static class Row {
+        private final long line;
+        private final String suffix;
+        private final String location;
+
+        public Row(long line, String suffix, String location) {
+            this.line = line;
+            this.suffix = suffix;
+            this.location = location;
+        }
+
+        public long getLine() {
+            return line;
+        }
+
+        public String getSuffix() {
+            return suffix;
+        }
+
+        public String getLocation() {
+            return location;
+        }
+    }
+
+    public static class Result {
+        private final Row row;
+        private final String handle;
+        private final Outcome outcome;
+        private final String location;
+        private final Exception error;
+
+        Result(Row row, String handle, Outcome outcome, String location, Exception error) {
+            this.row = row;
+            this.handle = handle;
+            this.outcome = outcome;
+            this.location = location;
+            this.error = error;
+        }
+
+        public Row getRow() {
+            return row;
+        }
+
+        public String getHandle() {
+            return handle;
+        }
+
+        public Outcome getOutcome() {
+            return outcome;
+        }
+
+        /**
+         * The location the handle refers to after the upsert, or null if unknown.
+         */
+        public String getLocation() {
+            return location;
+        }
+
+        /**
+         * The reason the upsert failed, or null if the handle doesn't refer to the
+         * requested location but no exception was thrown.
+         */
+        public Exception getError() {
+            return error;
+        }
+    }
+
+    private final PIDService ps;
+    private final String prefix;
+    private final Consumer<Result> listener;
+    private final ExecutorService executor;
+    private final Semaphore window;
+    // the rows of this upserter in progress, not those of others using the same server
+    private final Semaphore concurrency;
+    private final double verify;
+    private HandleIndex index = null;
+    private final AtomicLongArray counts = new AtomicLongArray(Outcome.values().length);
+
+    public BatchUpserter(PIDService ps, String prefix, int concurrency, int window, Consumer<Result> listener) {
+        this(ps, prefix, concurrency, window, false, listener);
+    }
+
+    public BatchUpserter(PIDService ps, String prefix, int concurrency, int window, boolean virtual, Consumer<Result> listener) {
+        this(ps, prefix, concurrency, window, virtual, 1.0, listener);
+    }
+
+    /**
+     * @param concurrency the rows of this batch processed at the same time
+     * @param window the rows accepted but not finished yet, at least the concurrency
+     * @param verify the fraction of rows (0.0 - 1.0) whose handle is read back after the upsert
+     */
+    public BatchUpserter(PIDService ps, String prefix, int concurrency, int window, boolean virtual, double verify, Consumer<Result> listener) {
+        this(concurrency, window, virtual, verify, listener, ps, prefix);
+    }
+
+    /*
+    an upserter without a PIDService of its own, whose rows are submitted with the PIDService of their prefix, e.g., by a PIDRouter.Batch
+    */
+    BatchUpserter(int concurrency, int window, boolean virtual, double verify, Consumer<Result> listener) {
+        this(concurrency, window, virtual, verify, listener, null, null);
+    }
+
+    private BatchUpserter(int concurrency, int window, boolean virtual, double verify, Consumer<Result> listener, PIDService ps, String prefix) {
+        if (concurrency < 1)
+            throw new IllegalArgumentException("BatchUpserter needs a concurrency of at least 1!");
+        if (window < concurrency)
+            throw new IllegalArgumentException("BatchUpserter window["+window+"] should at least be the concurrency["+concurrency+"]!");
+        this.ps = ps;
+        this.prefix = prefix;
+        this.listener = listener;
+        this.window = new Semaphore(window);
+        this.concurrency = new Semaphore(concurrency);
+        this.verify = verify;
+        this.executor = BatchExecutors.newExecutor("epicify-batch", concurrency, virtual);
+        logger.debug("BatchUpserter [concurrency="+concurrency+"][window="+window+"][virtual="+(virtual && BatchExecutors.isVirtualThreadsSupported())+"][verify="+verify+"]");
+    }
+
+    /**
+     * Diff the rows against this index before upserting them, and record the
+     * upserted locations in it; set it before the first row is submitted.
+     */
+    public void setIndex(HandleIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * Schedule the upsert of a row, blocks while the in-flight window is full.
+     */
+    public void submit(final Row row) throws InterruptedException {
+        submit(row, this.ps, this.prefix);
+    }
+
+    /*
+    schedule the upsert of a row for the prefix of the PIDService
+    */
+    void submit(final Row row, final PIDService ps, final String prefix) throws InterruptedException {
+        this.window.acquire();
+        try {
+            this.executor.execute(() -> {
+                try {
+                    Result result;
+                    this.concurrency.acquire();
+                    try {
+                        result = upsert(row, ps, prefix);
+                    } finally {
+                        this.concurrency.release();
+                    }
+                    this.counts.incrementAndGet(result.getOutcome().ordinal());
+                    this.listener.accept(result);
+                } catch (InterruptedException e) {
+                    logger.warn("BatchUpserter interrupted before row["+row.getLine()+"]");
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    logger.error("BatchUpserter listener failed for row["+row.getLine()+"]", e);
+                } finally {
+                    this.window.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            this.window.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Wait till all submitted rows are done, and stop the worker threads.
+     */
+    public void await() throws InterruptedException {
+        this.executor.shutdown();
+        while (!this.executor.awaitTermination(1, TimeUnit.MINUTES))
+            logger.debug("BatchUpserter still waiting for rows in flight");
+    }
+
+    /**
+     * The number of rows finished so far with this outcome.
+     */
+    public long getCount(Outcome outcome) {
+        return this.counts.get(outcome.ordinal());
+    }
+
+    @Override
+    public void close() {
+        this.executor.shutdownNow();
+    }
+
+    Result upsert(Row row, PIDService ps, String prefix) {
+        String hdl = prefix + "/" + row.getSuffix();
+        if (this.index != null && this.index.matches(row.getSuffix(), row.getLocation()))
+            return new Result(row, hdl, Outcome.UNCHANGED, row.getLocation(), null);
+        Result result = write(row, hdl, ps);
+        if (this.index != null) {
+            if (result.getOutcome() == Outcome.FAILED)
+                this.index.remove(row.getSuffix());
+            else
+                this.index.put(row.getSuffix(), HandleIndex.fingerprint(row.getLocation()));
+        }
+        return result;
+    }
+
+    private Result write(Row row, String hdl, PIDService ps) {
+        try {
+            Outcome outcome = ps.upsertHandle(row.getSuffix(), row.getLocation()) ? Outcome.NEW : Outcome.UPDATED;
+            String loc = row.getLocation();
+            if (this.verify > 0.0 && (this.verify >= 1.0 || ThreadLocalRandom.current().nextDouble() < this.verify)) {
+                loc = ps.getPrimaryLocation(hdl);
+                if (loc == null || !loc.equals(row.getLocation()))
+                    return new Result(row, hdl, Outcome.FAILED, loc, null);
+            }
+            return new Result(row, hdl, outcome, loc, null);
+        } catch (Exception e) {
+            logger.error("Failed to upsert handle["+hdl+"] to ["+row.getLocation()+"]", e);
+            return new Result(row, hdl, Outcome.FAILED, null, e);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package nl.knaw.meertens.pid;
+
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.message.BasicHttpResponse;
+
+/*
+a complete response, with its entity (if any) in memory, there is no connection to release
+*/
+class BufferedHttpResponse extends BasicHttpResponse implements CloseableHttpResponse {
+
+    BufferedHttpResponse(ProtocolVersion version, int status) {
+        // HTTP/2 has no reason phrases, but they end up in our log messages
+        super(version, status, EnglishReasonPhraseCatalog.INSTANCE.getReason(status, null));
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,152 @@
+package nl.knaw.meertens.pid;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming reader for RFC 4180 CSV: fields are separated by commas, may be
+ * enclosed in double quotes, and a quoted field may contain commas, line
+ * breaks and doubled ("") quotes. Records are read one at a time, so memory
+ * use doesn't depend on the size of the file.
+ *
+ * Lines starting with a # are skipped as comments, and so are empty lines.
+ * Line breaks (CRLF, LF or CR) inside quoted fields are returned as LF.
+ * Errors are reported as an IOException mentioning the line number.
+ */
+public class CsvReader implements Closeable {
+
+    public static final int DEFAULT_MAX_RECORD_LENGTH = 1024 * 1024;
+
+    private final BufferedReader reader;
+    private final int maxRecordLength;
+
+    private final StringBuilder field = new StringBuilder();
+    private int pushback = -2;
+    private long line = 1L;
+    private boolean newline = false;
+    private long recordLine = 0L;
+    private int recordLength = 0;
+
+    public CsvReader(Reader reader) {
+        this(reader, DEFAULT_MAX_RECORD_LENGTH);
+    }
+
+    public CsvReader(Reader reader, int maxRecordLength) {
+        this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader, 64 * 1024);
+        this.maxRecordLength = maxRecordLength;
+    }
+
+    /**
+     * The line number the last record returned by {@link #next()} starts on.
+     */
+    public long getLine() {
+        return recordLine;
+    }
+
+    /**
+     * Read the next record, or null at the end of the input.
+     */
+    public List<String> next() throws IOException {
+        // skip empty lines and comments
+        int c;
+        while (true) {
+            c = read();
+            if (c == -1)
+                return null;
+            if (c == '\n')
+                continue;
+            if (c == '#') {
+                while (c != -1 && c != '\n')
+                    c = read();
+                continue;
+            }
+            break;
+        }
+        this.recordLine = this.line;
+        this.recordLength = 0;
+        List<String> fields = new ArrayList<>(2);
+        this.field.setLength(0);
+        boolean quoted = false;
+        boolean wasQuoted = false;
+        while (true) {
+            if (quoted) {
+                if (c == -1)
+                    throw new IOException("CSV["+this.recordLine+"] quoted field isn't closed at the end of the file!");
+                if (c == '"') {
+                    int d = read();
+                    if (d == '"')
+                        append('"');
+                    else {
+                        quoted = false;
+                        unread(d);
+                    }
+                } else
+                    append(c);
+            } else if (c == -1 || c == '\n') {
+                fields.add(this.field.toString());
+                return fields;
+            } else if (c == ',') {
+                fields.add(this.field.toString());
+                this.field.setLength(0);
+                wasQuoted = false;
+            } else if (c == '"' && this.field.length() == 0 && !wasQuoted) {
+                quoted = true;
+                wasQuoted = true;
+            } else if (wasQuoted) {
+                throw new IOException("CSV["+this.line+"] unexpected character["+(char)c+"] after a quoted field!");
+            } else
+                append(c);
+            c = read();
+        }
+    }
+
+    private void append(int c) throws IOException {
+        if (++this.recordLength > this.maxRecordLength)
+            throw new IOException("CSV["+this.recordLine+"] record is longer than "+this.maxRecordLength+" characters!");
+        this.field.append((char) c);
+    }
+
+    /*
+    read the next character, turning CRLF and CR into LF and keeping track of the line number
+    */
+    private int read() throws IOException {
+        int c;
+        if (this.newline) {
+            this.line++;
+            this.newline = false;
+        }
+        if (this.pushback != -2) {
+            c = this.pushback;
+            this.pushback = -2;
+            if (c == '\n')
+                this.newline = true;
+            return c;
+        }
+        c = this.reader.read();
+        if (c == '\r') {
+            // peek, so the pushback is free for unread
+            this.reader.mark(1);
+            if (this.reader.read() != '\n')
+                this.reader.reset();
+            c = '\n';
+        }
+        if (c == '\n')
+            this.newline = true;
+        return c;
+    }
+
+    private void unread(int c) {
+        this.pushback = c;
+        if (c == '\n')
+            this.newline = false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.reader.close();
+    }
+}
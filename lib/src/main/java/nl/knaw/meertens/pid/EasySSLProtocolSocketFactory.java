@@ -116,7 +116,7 @@ public class EasySSLProtocolSocketFactory implements SecureProtocolSocketFactory
             sslcontext = ssl;
     }
  
-    private static SSLContext createEasySSLContext() {
+    static SSLContext createEasySSLContext() {
         try {
             SSLContext context = SSLContext.getInstance("SSL");
             context.init(
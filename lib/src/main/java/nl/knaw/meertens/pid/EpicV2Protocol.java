@@ -0,0 +1,203 @@
+package nl.knaw.meertens.pid;
+
+import static nl.knaw.meertens.pid.PIDService.getResponseBody;
+import static nl.knaw.meertens.pid.PIDService.getResponseJson;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The REST API of an EPIC v2 server, which authenticates the client by basic
+ * authentication. Handles are always given as prefix/suffix.
+ */
+class EpicV2Protocol extends HandleProtocol {
+
+    private static final Logger logger = LoggerFactory.getLogger(EpicV2Protocol.class.getName());
+
+    private final String authorization;
+    private final HandlePayload.Template payload;
+
+    EpicV2Protocol(String host, String handlePrefix, String email, String userName, String password) {
+        super(host, handlePrefix);
+        this.authorization = "Basic " + Base64.getEncoder().encodeToString((userName + ":" + password).getBytes(StandardCharsets.UTF_8));
+        this.payload = HandlePayload.Template.epic(email);
+    }
+
+    @Override
+    String getVersion() {
+        return "2";
+    }
+
+    private void setBasicAuthentication(HttpRequestBase request) {
+        request.setHeader("Authorization", this.authorization);
+    }
+
+    private HttpPut newPutRequest(String handle, String a_location) {
+        HttpPut httpput = new HttpPut(this.host + handle);
+        setBasicAuthentication(httpput);
+        httpput.setEntity(new HandlePayload(this.payload, a_location, System.currentTimeMillis()));
+        return httpput;
+    }
+
+    @Override
+    HttpUriRequest newCreateRequest(String uuid, String a_location) {
+        String handle = this.handlePrefix + "/" + uuid;
+        return newPutRequest(handle, a_location);
+    }
+
+    @Override
+    PIDService.ResponseHandler<String> createHandler(String uuid, final String a_location) {
+        final String handle = this.handlePrefix + "/" + uuid;
+        return (HttpResponse response) -> {
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_CREATED ) {
+                logger.error("EPIC unexpected result[" + response.getStatusLine().toString()+"]");
+                throw new HandleCreationException("Handle creation failed. Unexpected failure: " + response.getStatusLine().toString() + ". " + getResponseBody(response));
+            }
+            //A resolvable handle is returned using the global resolver
+            logger.info( "Created handle["+handle+"] for location ["+a_location+"]");
+            return handle;
+        };
+    }
+
+    @Override
+    HttpUriRequest newUpsertRequest(String suffix, String a_location) {
+        String handle = this.handlePrefix + "/" + suffix;
+        return newPutRequest(handle, a_location);
+    }
+
+    /*
+    the EPIC server answers 201 when the PUT created the handle, and 204 when it overwrote it
+    */
+    @Override
+    PIDService.ResponseHandler<Boolean> upsertHandler(String suffix, final String a_location) {
+        final String handle = this.handlePrefix + "/" + suffix;
+        return (HttpResponse response) -> {
+            int status = response.getStatusLine().getStatusCode();
+            if (status == HttpStatus.SC_CREATED) {
+                logger.info( "Created handle["+handle+"] for location ["+a_location+"]");
+                return true;
+            }
+            if (status == HttpStatus.SC_NO_CONTENT) {
+                logger.info( "Updated handle["+handle+"] for location ["+a_location+"]");
+                return false;
+            }
+            logger.error("EPIC unexpected result[" + response.getStatusLine().toString()+"]");
+            throw new HandleCreationException("Handle upsert failed. Unexpected failure: " + response.getStatusLine().toString() + ". " + getResponseBody(response));
+        };
+    }
+
+    @Override
+    HttpUriRequest newUpdateRequest(String a_handle, String a_location) {
+        return newPutRequest(a_handle, a_location);
+    }
+
+    @Override
+    PIDService.ResponseHandler<Void> updateHandler(final String a_handle, final String a_location) {
+        return (HttpResponse response) -> {
+            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_NO_CONTENT) {
+                logger.info( "EPIC updated handle["+a_handle+"] for location ["+a_location+"]");
+            } else {
+                logger.error("EPIC unexpected result[" + response.getStatusLine().toString()+"]");
+                throw new HandleCreationException("Handle creation failed. Unexpected failure: " + response.getStatusLine().toString() + ". " + getResponseBody(response));
+            }
+            return null;
+        };
+    }
+
+    @Override
+    HttpUriRequest newGetRequest(String a_handle) throws IOException {
+        HttpGet httpGet = new HttpGet(noRedirect(this.host + a_handle));
+        httpGet.setHeader("Accept", "application/json");
+        setBasicAuthentication(httpGet);
+        return httpGet;
+    }
+
+    @Override
+    PIDService.ResponseHandler<HandleRecord> recordHandler(final String a_handle) {
+        return (HttpResponse response) -> {
+            switch (response.getStatusLine().getStatusCode()) {
+                case HttpStatus.SC_OK:
+                    return HandleRecord.parseEpic(getResponseJson(response), handle(a_handle));
+                case HttpStatus.SC_NOT_FOUND:
+                    logger.warn("EPIC handle["+a_handle+"] doesn't exist[" + response.getStatusLine().toString()+"]");
+                    return null;
+                default:
+                    logger.error("EPIC unexpected result[" + response.getStatusLine().toString()+"]");
+                    throw new IOException("Handle retrieval failed["+a_handle+"]. Unexpected failure: " + response.getStatusLine().toString() + ". " + getResponseBody(response));
+            }
+        };
+    }
+
+    @Override
+    boolean isPaged() {
+        return false;
+    }
+
+    @Override
+    HttpUriRequest newListRequest(int page, int pageSize) {
+        HttpGet httpGet = new HttpGet(this.host + this.handlePrefix + "/");
+        httpGet.setHeader("Accept", "application/json");
+        setBasicAuthentication(httpGet);
+        return httpGet;
+    }
+
+    /*
+    the EPIC server answers a plain array of suffixes
+    */
+    @Override
+    PIDService.ResponseHandler<List<String>> listHandler() {
+        final String prefix = this.handlePrefix + "/";
+        return (HttpResponse response) -> {
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+                logger.error("EPIC unexpected result[" + response.getStatusLine().toString()+"]");
+                throw new IOException("Handle listing failed["+this.handlePrefix+"]. Unexpected failure: " + response.getStatusLine().toString() + ". " + getResponseBody(response));
+            }
+            JsonReader json = getResponseJson(response);
+            List<String> suffixes = new ArrayList<String>();
+            json.beginArray();
+            while (json.hasNext()) {
+                String handle = json.nextString();
+                suffixes.add(handle.startsWith(prefix) ? handle.substring(prefix.length()) : handle);
+            }
+            return suffixes;
+        };
+    }
+
+    @Override
+    String deletedHandle(String a_handle) {
+        return a_handle;
+    }
+
+    @Override
+    HttpUriRequest newDeleteRequest(String a_handle) throws IOException {
+        HttpDelete httpDel = new HttpDelete(noRedirect(this.host + a_handle));
+        httpDel.setHeader("Accept", "application/json");
+        setBasicAuthentication(httpDel);
+        return httpDel;
+    }
+
+    @Override
+    PIDService.ResponseHandler<Void> deleteHandler(final String a_handle) {
+        return (HttpResponse response) -> {
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_NO_CONTENT) {
+                logger.error("EPIC unexpected result[" + response.getStatusLine().toString()+"]");
+                throw new IOException("Handle retrieval failed["+a_handle+"]. Unexpected failure: " + response.getStatusLine().toString() + ". " + getResponseBody(response));
+            }
+            return null;
+        };
+    }
+}
@@ -0,0 +1,159 @@
+package nl.knaw.meertens.pid;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-process, read-through cache of {@link HandleRecord}s, so resolving a
+ * hot handle, or reading any of its other values, doesn't need a round trip
+ * to the PID server. It's a size-bound
+ * LRU map whose entries expire after a TTL; that a handle doesn't exist (a 404)
+ * is cached too, for a (usually shorter) negative TTL.
+ *
+ * The PIDService invalidates a handle when it creates, updates or deletes it,
+ * but changes made by other clients only show up once the entry expires.
+ *
+ * It's configured by an optional {@code <cache>} section in the PIDService
+ * configuration:
+ * <pre>
+ * &lt;cache&gt;
+ *   &lt;maxSize&gt;10000&lt;/maxSize&gt;       max handles cached, without it there is no cache
+ *   &lt;ttl&gt;300&lt;/ttl&gt;                 seconds a handle is cached
+ *   &lt;negativeTtl&gt;30&lt;/negativeTtl&gt;   seconds a missing handle is cached
+ * &lt;/cache&gt;
+ * </pre>
+ */
+public class HandleCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(HandleCache.class.getName());
+
+    public static final int DEFAULT_TTL = 300;
+    public static final int DEFAULT_NEGATIVE_TTL = 30;
+
+    // the number of buckets of invalidation stamps, a power of 2
+    private static final int STAMPS = 256;
+
+    /**
+     * A cached lookup, the record is null if the handle doesn't exist.
+     */
+    public static class Entry {
+        private final HandleRecord record;
+        private final long expires;
+
+        Entry(HandleRecord record, long expires) {
+            this.record = record;
+            this.expires = expires;
+        }
+
+        public HandleRecord getRecord() {
+            return this.record;
+        }
+    }
+
+    private final int maxSize;
+    private final long ttl;
+    private final long negativeTtl;
+    private final Map<String, Entry> entries;
+    // counts the invalidations per bucket of handles, so a lookup that raced with one of its handle isn't cached
+    private final long[] invalidations = new long[STAMPS];
+    private long hits = 0L;
+    private long misses = 0L;
+
+    /**
+     * The cache configured for a PIDService, or null if it has none.
+     */
+    public static HandleCache fromConfiguration(Configuration config) {
+        int maxSize = config.getInt("cache.maxSize", 0);
+        if (maxSize <= 0)
+            return null;
+        return new HandleCache(maxSize, config.getInt("cache.ttl", DEFAULT_TTL) * 1000L, config.getInt("cache.negativeTtl", DEFAULT_NEGATIVE_TTL) * 1000L);
+    }
+
+    /**
+     * @param maxSize max handles cached
+     * @param ttl milliseconds a handle is cached
+     * @param negativeTtl milliseconds a missing handle is cached, or 0 to not cache them
+     */
+    public HandleCache(int maxSize, long ttl, long negativeTtl) {
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > HandleCache.this.maxSize;
+            }
+        };
+        logger.debug("HandleCache [maxSize="+maxSize+"][ttl="+(ttl/1000)+"s][negativeTtl="+(negativeTtl/1000)+"s]");
+    }
+
+    /**
+     * The cached lookup of the handle, or null if it isn't cached (anymore).
+     */
+    public synchronized Entry get(String handle) {
+        Entry entry = this.entries.get(handle);
+        if (entry != null && entry.expires - System.currentTimeMillis() <= 0) {
+            this.entries.remove(handle);
+            entry = null;
+        }
+        if (entry == null)
+            this.misses++;
+        else
+            this.hits++;
+        return entry;
+    }
+
+    /**
+     * A stamp to take before looking up the handle at the PID server, and to
+     * pass on to {@link #put(String, HandleRecord, long)} afterwards.
+     */
+    public synchronized long stamp(String handle) {
+        return this.invalidations[bucket(handle)];
+    }
+
+    /**
+     * Cache the record, or that the handle doesn't exist if it's null, unless
+     * the handle, or another one in its bucket, was invalidated since the
+     * stamp was taken.
+     */
+    public synchronized void put(String handle, HandleRecord record, long stamp) {
+        if (stamp != this.invalidations[bucket(handle)])
+            return;
+        long ttl = record != null ? this.ttl : this.negativeTtl;
+        if (ttl <= 0)
+            return;
+        this.entries.put(handle, new Entry(record, System.currentTimeMillis() + ttl));
+    }
+
+    public synchronized void invalidate(String handle) {
+        this.invalidations[bucket(handle)]++;
+        this.entries.remove(handle);
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < STAMPS; i++)
+            this.invalidations[i]++;
+        this.entries.clear();
+    }
+
+    private static int bucket(String handle) {
+        int h = handle.hashCode();
+        return (h ^ (h >>> 16)) & (STAMPS - 1);
+    }
+
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+}
@@ -0,0 +1,348 @@
+package nl.knaw.meertens.pid;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.DefaultHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOSession;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.ssl.SSLContexts;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of persistent (keep-alive) HTTP connections owned by a PIDService,
+ * shared by all its calls to the EPIC v2 or Handle v8 server. It's the default
+ * {@link HandleTransport}.
+ *
+ * The pool is configured by an optional {@code <pool>} section in the
+ * PIDService configuration:
+ * <pre>
+ * &lt;pool&gt;
+ *   &lt;maxTotal&gt;20&lt;/maxTotal&gt;         max connections overall
+ *   &lt;maxPerRoute&gt;10&lt;/maxPerRoute&gt;   max connections to the PID server
+ *   &lt;idleTimeout&gt;30&lt;/idleTimeout&gt;   seconds before an idle connection is evicted
+ *   &lt;keepAlive&gt;30&lt;/keepAlive&gt;       seconds to keep a connection if the server doesn't say
+ * &lt;/pool&gt;
+ * </pre>
+ *
+ * The calls of an AsyncPIDService go through a separate, non-blocking client,
+ * started on first use, whose pool is bounded by an optional {@code <async>}
+ * section:
+ * <pre>
+ * &lt;async&gt;
+ *   &lt;maxTotal&gt;100&lt;/maxTotal&gt;       max concurrent connections overall
+ *   &lt;maxPerRoute&gt;100&lt;/maxPerRoute&gt; max concurrent connections to the PID server
+ *   &lt;ioThreads&gt;2&lt;/ioThreads&gt;       I/O dispatch threads, default the number of CPUs
+ * &lt;/async&gt;
+ * </pre>
+ * Further requests wait (without a thread) till a connection is free.
+ */
+public class HandleConnectionPool implements HandleTransport {
+
+    private static final Logger logger = LoggerFactory.getLogger(HandleConnectionPool.class.getName());
+
+    public static final int DEFAULT_MAX_TOTAL = 20;
+    public static final int DEFAULT_MAX_PER_ROUTE = 10;
+    public static final int DEFAULT_IDLE_TIMEOUT = 30;
+    public static final int DEFAULT_KEEP_ALIVE = 30;
+
+    private final HandleCredentials credentials;
+    private final SSLContext ssl;
+    private final HostnameVerifier verifier;
+
+    private final PoolingHttpClientConnectionManager manager;
+    private final CloseableHttpClient client;
+    private final Configuration config;
+    private CloseableHttpAsyncClient asyncClient = null;
+    private PoolingNHttpClientConnectionManager asyncManager = null;
+    private boolean closed = false;
+    private volatile HandleMetrics metrics = HandleMetrics.NONE;
+
+    /**
+     * A pool for Handle v8, which authenticates with the (reloadable) client certificate.
+     */
+    public HandleConnectionPool(Configuration config, HandleCredentials credentials) {
+        this(config, credentials, null, SSLConnectionSocketFactory.getDefaultHostnameVerifier());
+    }
+
+    /**
+     * A pool for EPIC v2, which uses the given SSLContext or, if null, one that
+     * accepts self-signed server certificates.
+     */
+    public HandleConnectionPool(Configuration config, SSLContext ssl) {
+        this(config, null, ssl != null ? ssl : EasySSLProtocolSocketFactory.createEasySSLContext(), (hostname, session) -> true);
+    }
+
+    /*
+    a pool for public servers, e.g., Handle mirrors, whose certificates are checked the usual way
+    */
+    static HandleConnectionPool withDefaultTrust(Configuration config) {
+        return new HandleConnectionPool(config, null, SSLContexts.createDefault(), new DefaultHostnameVerifier());
+    }
+
+    private HandleConnectionPool(Configuration config, HandleCredentials credentials, SSLContext ssl, HostnameVerifier verifier) {
+        this.credentials = credentials;
+        this.ssl = ssl;
+        this.verifier = verifier;
+        this.config = config;
+
+        int maxTotal = config.getInt("pool.maxTotal", DEFAULT_MAX_TOTAL);
+        int maxPerRoute = config.getInt("pool.maxPerRoute", DEFAULT_MAX_PER_ROUTE);
+        int idleTimeout = config.getInt("pool.idleTimeout", DEFAULT_IDLE_TIMEOUT);
+        final long keepAlive = config.getInt("pool.keepAlive", DEFAULT_KEEP_ALIVE) * 1000L;
+
+        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+            .register("http", PlainConnectionSocketFactory.getSocketFactory())
+            .register("https", new SocketFactory())
+            .build();
+        this.manager = new PoolingHttpClientConnectionManager(registry);
+        this.manager.setMaxTotal(maxTotal);
+        this.manager.setDefaultMaxPerRoute(maxPerRoute);
+
+        ConnectionKeepAliveStrategy keepAliveStrategy = (HttpResponse response, HttpContext context) -> {
+            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return duration > 0 ? duration : keepAlive;
+        };
+
+        this.client = HttpClients.custom()
+            .setConnectionManager(this.manager)
+            .setKeepAliveStrategy(keepAliveStrategy)
+            .evictExpiredConnections()
+            .evictIdleConnections(idleTimeout, TimeUnit.SECONDS)
+            .disableRedirectHandling()
+            .build();
+
+        logger.debug("HandleConnectionPool [maxTotal="+maxTotal+"][maxPerRoute="+maxPerRoute+"][idleTimeout="+idleTimeout+"s][keepAlive="+(keepAlive/1000)+"s]");
+    }
+
+    /**
+     * Execute the request on a pooled connection. The caller has to close the
+     * response, after consuming its entity, to return the connection to the pool.
+     */
+    @Override
+    public CloseableHttpResponse execute(HttpUriRequest request) throws IOException {
+        return this.client.execute(request);
+    }
+
+    @Override
+    public CompletableFuture<HttpResponse> executeAsync(HttpUriRequest request) {
+        final CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+        CloseableHttpAsyncClient client;
+        try {
+            client = getAsyncClient();
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        final Future<HttpResponse> exchange = client.execute(request, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                future.complete(response);
+            }
+
+            @Override
+            public void failed(Exception e) {
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void cancelled() {
+                future.cancel(false);
+            }
+        });
+        // cancelling the future aborts the exchange, and frees its connection
+        future.whenComplete((HttpResponse response, Throwable t) -> {
+            if (future.isCancelled())
+                exchange.cancel(true);
+        });
+        return future;
+    }
+
+    private synchronized CloseableHttpAsyncClient getAsyncClient() throws IOException {
+        if (this.closed)
+            throw new IOException("HandleConnectionPool is closed");
+        if (this.asyncClient != null)
+            return this.asyncClient;
+
+        int maxTotal = this.config.getInt("async.maxTotal", AsyncPIDService.DEFAULT_MAX_TOTAL);
+        int maxPerRoute = this.config.getInt("async.maxPerRoute", AsyncPIDService.DEFAULT_MAX_PER_ROUTE);
+        int ioThreads = this.config.getInt("async.ioThreads", Runtime.getRuntime().availableProcessors());
+
+        DefaultConnectingIOReactor reactor = new DefaultConnectingIOReactor(IOReactorConfig.custom().setIoThreadCount(ioThreads).build());
+        Registry<SchemeIOSessionStrategy> registry = RegistryBuilder.<SchemeIOSessionStrategy>create()
+            .register("http", NoopIOSessionStrategy.INSTANCE)
+            .register("https", new SessionStrategy())
+            .build();
+        PoolingNHttpClientConnectionManager manager = new PoolingNHttpClientConnectionManager(reactor, registry);
+        manager.setMaxTotal(maxTotal);
+        manager.setDefaultMaxPerRoute(maxPerRoute);
+
+        this.asyncManager = manager;
+        this.asyncClient = HttpAsyncClients.custom()
+            .setConnectionManager(manager)
+            .build();
+        this.asyncClient.start();
+
+        logger.debug("HandleConnectionPool async [maxTotal="+maxTotal+"][maxPerRoute="+maxPerRoute+"][ioThreads="+ioThreads+"]");
+        return this.asyncClient;
+    }
+
+    /**
+     * Close all idle connections, e.g., after the client credentials have been
+     * reloaded, so new connections are set up with the new credentials.
+     */
+    @Override
+    public void closeIdleConnections() {
+        this.manager.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+        PoolingNHttpClientConnectionManager asyncManager;
+        synchronized (this) {
+            asyncManager = this.asyncManager;
+        }
+        if (asyncManager != null)
+            asyncManager.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+    }
+
+    public PoolStats getStats() {
+        return this.manager.getTotalStats();
+    }
+
+    /**
+     * Gauges of the blocking pool, e.g., "pool.pending" for the requests
+     * waiting for a connection, and the time of each TLS connect and handshake.
+     */
+    @Override
+    public void setMetrics(HandleMetrics metrics) {
+        this.metrics = metrics;
+        metrics.gauge("pool.leased", () -> getStats().getLeased());
+        metrics.gauge("pool.available", () -> getStats().getAvailable());
+        metrics.gauge("pool.pending", () -> getStats().getPending());
+        metrics.gauge("pool.max", () -> getStats().getMax());
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.client.close();
+        CloseableHttpAsyncClient asyncClient;
+        synchronized (this) {
+            this.closed = true;
+            asyncClient = this.asyncClient;
+        }
+        if (asyncClient != null)
+            asyncClient.close();
+    }
+
+    /*
+    the SSLContext for new connections
+    */
+    SSLContext getSSLContext() throws IOException {
+        if (this.credentials == null)
+            return this.ssl;
+        try {
+            return this.credentials.getSSLContext();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            logger.error("Problem configurating connection",e);
+            throw new IOException("Problem configurating connection", e);
+        }
+    }
+
+    /*
+    creates TLS sockets using the current SSLContext, so reloaded credentials are used for new connections
+    */
+    private class SocketFactory implements LayeredConnectionSocketFactory {
+
+        private SSLContext context = null;
+        private SSLConnectionSocketFactory factory = null;
+
+        private synchronized SSLConnectionSocketFactory getFactory() throws IOException {
+            SSLContext current = getSSLContext();
+            if (this.factory == null || this.context != current) {
+                this.context = current;
+                this.factory = new SSLConnectionSocketFactory(current, verifier);
+            }
+            return this.factory;
+        }
+
+        @Override
+        public Socket createSocket(HttpContext context) throws IOException {
+            return getFactory().createSocket(context);
+        }
+
+        @Override
+        public Socket connectSocket(int connectTimeout, Socket sock, HttpHost host, InetSocketAddress remoteAddress, InetSocketAddress localAddress, HttpContext context) throws IOException {
+            long start = System.nanoTime();
+            Socket socket = getFactory().connectSocket(connectTimeout, sock, host, remoteAddress, localAddress, context);
+            // the handshake is done by now
+            metrics.connect(System.nanoTime() - start);
+            return socket;
+        }
+
+        @Override
+        public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context) throws IOException {
+            return getFactory().createLayeredSocket(socket, target, port, context);
+        }
+    }
+
+    /*
+    the non-blocking counterpart of the SocketFactory
+    */
+    private class SessionStrategy implements SchemeIOSessionStrategy {
+
+        private SSLContext context = null;
+        private SSLIOSessionStrategy strategy = null;
+
+        private synchronized SSLIOSessionStrategy getStrategy() throws IOException {
+            SSLContext current = getSSLContext();
+            if (this.strategy == null || this.context != current) {
+                this.context = current;
+                this.strategy = new SSLIOSessionStrategy(current, verifier);
+            }
+            return this.strategy;
+        }
+
+        @Override
+        public IOSession upgrade(HttpHost host, IOSession session) throws IOException {
+            return getStrategy().upgrade(host, session);
+        }
+
+        @Override
+        public boolean isLayeringRequired() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package nl.knaw.meertens.pid;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A local view of the handles under a prefix: which suffixes exist, and a
+ * 64-bit fingerprint of the location each one refers to, as far as known.
+ * It's built from a listing of the prefix ({@link PIDService#listHandles}),
+ * which only gives the suffixes, and the fingerprints of the locations this
+ * client wrote itself. A batch run can then skip the rows whose suffix exists
+ * with the same location, assuming the handles aren't changed behind its back.
+ */
+public interface HandleIndex extends Closeable {
+
+    /**
+     * The fingerprint of a suffix that exists, but whose location isn't known.
+     */
+    long UNKNOWN = 0L;
+
+    boolean contains(String suffix);
+
+    /**
+     * The fingerprint of the location of the suffix, or {@link #UNKNOWN} if
+     * it's unknown or the suffix isn't in the index.
+     */
+    long get(String suffix);
+
+    void put(String suffix, long fingerprint);
+
+    boolean remove(String suffix);
+
+    int size();
+
+    /**
+     * Does the suffix exist and refer to this location?
+     */
+    default boolean matches(String suffix, String location) {
+        long fingerprint = get(suffix);
+        return fingerprint != UNKNOWN && fingerprint == fingerprint(location);
+    }
+
+    /**
+     * A 64-bit FNV-1a hash of the UTF-8 bytes, with a final avalanche mix so
+     * the low bits can be used as a hash table slot; never {@link #UNKNOWN}.
+     */
+    static long fingerprint(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == UNKNOWN ? 1L : h;
+    }
+}
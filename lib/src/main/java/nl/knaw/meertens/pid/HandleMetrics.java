@@ -0,0 +1,63 @@
+package nl.knaw.meertens.pid;
+
+import java.util.function.Supplier;
+
+/**
+ * A hook for the metrics of a PIDService (and its AsyncPIDService), to feed a
+ * metrics library like Micrometer ({@link MicrometerHandleMetrics}) or
+ * Dropwizard Metrics. All methods do nothing by default, so an implementation
+ * only overrides what it records; they're called on the request threads (or
+ * the I/O threads of the non-blocking client), so they should be cheap and
+ * thread-safe.
+ *
+ * It's set by {@link PIDService#setMetrics(HandleMetrics)}, by default it's
+ * {@link #NONE}.
+ */
+public interface HandleMetrics {
+
+    /** the operations, a GET to check whether an earlier attempt succeeded after all is a get */
+    String CREATE = "create";
+    String UPSERT = "upsert";
+    String UPDATE = "update";
+    String GET = "get";
+    String LIST = "list";
+    String DELETE = "delete";
+
+    HandleMetrics NONE = new HandleMetrics() {
+    };
+
+    /**
+     * A request (attempt) to the PID server for the operation, by the API
+     * version ("8" or "2"): the HTTP status of the response, or -1 if there is
+     * none, e.g., for a timeout, and the time till the response headers, in
+     * nanoseconds, including the wait for a connection.
+     */
+    default void request(String operation, String version, int status, long nanos) {
+    }
+
+    /**
+     * A request for the operation will be retried, after the given attempt failed.
+     */
+    default void retry(String operation, String version, int attempt) {
+    }
+
+    /**
+     * A lookup served from the handle cache (hit), or not (miss).
+     */
+    default void cache(boolean hit) {
+    }
+
+    /**
+     * A new TLS connection of the connection pool: the TCP connect and the TLS
+     * handshake, in nanoseconds.
+     */
+    default void connect(long nanos) {
+    }
+
+    /**
+     * A value to sample when the metrics are collected, e.g., "pool.leased"
+     * for the connections in use; registered once when the hook is set.
+     */
+    default void gauge(String name, Supplier<Number> value) {
+    }
+}
@@ -0,0 +1,243 @@
+package nl.knaw.meertens.pid;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+/**
+ * The JSON body of a PUT that creates or updates a handle, written as UTF-8
+ * straight to the connection. The parts that are the same for every handle
+ * of a PIDService, i.e., the EMAIL and HS_ADMIN values, are encoded once in a
+ * {@link Template}; only the location (escaped on the fly) and the timestamp
+ * are written per request. The entity is repeatable, so it can be resent
+ * when a request is retried.
+ */
+public class HandlePayload extends AbstractHttpEntity {
+
+    private static final int LOCATION = 0;
+    private static final int TIMESTAMP = 1;
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Pre-encoded parts of a payload, with the holes for the location and
+     * timestamp between them.
+     */
+    public static class Template {
+        private final byte[][] parts;
+        private final int[] holes;
+        private final int length;
+
+        private Template(byte[][] parts, int[] holes) {
+            this.parts = parts;
+            this.holes = holes;
+            int length = 0;
+            for (byte[] part : parts)
+                length += part.length;
+            this.length = length;
+        }
+
+        /**
+         * The values of a Handle v8 handle: the URL, the optional EMAIL and the HS_ADMIN for the prefix.
+         */
+        public static Template handle(String prefix, String email) {
+            return new Template(new byte[][] {
+                ascii("{\"values\":[{\"index\":1,\"type\":\"URL\",\"data\":{\"format\":\"string\",\"value\":\""),
+                concat(ascii("\"}},"),
+                    email != null ? concat(ascii("{\"index\":2,\"type\":\"EMAIL\",\"data\":{\"format\":\"string\",\"value\":\""), escaped(email), ascii("\"}},")) : new byte[0],
+                    // the permissions as the Handle server has always been sent them
+                    ascii("{\"index\":100,\"type\":\"HS_ADMIN\",\"data\":{\"format\":\"admin\",\"value\":{\"handle\":\"0.NA/"), escaped(prefix), ascii("\",\"index\":200,\"permissions\":011111110011}}}]}"))
+            }, new int[] { LOCATION });
+        }
+
+        /**
+         * Only the URL value of a Handle v8 handle, for a PUT with ?index=1 that leaves the other values alone.
+         */
+        public static Template url() {
+            return new Template(new byte[][] {
+                ascii("{\"values\":[{\"index\":1,\"type\":\"URL\",\"data\":{\"format\":\"string\",\"value\":\""),
+                ascii("\"}}]}")
+            }, new int[] { LOCATION });
+        }
+
+        /**
+         * The values of an EPIC v2 handle: the URL and the optional EMAIL.
+         */
+        public static Template epic(String email) {
+            if (email == null) {
+                return new Template(new byte[][] {
+                    ascii("[{\"idx\":\"1\",\"type\":\"URL\",\"parsed_data\":\""),
+                    ascii("\",\"timestamp\":\""),
+                    ascii("\",\"refs\":\"\"}]")
+                }, new int[] { LOCATION, TIMESTAMP });
+            }
+            return new Template(new byte[][] {
+                ascii("[{\"idx\":\"1\",\"type\":\"URL\",\"parsed_data\":\""),
+                ascii("\",\"timestamp\":\""),
+                concat(ascii("\",\"refs\":\"\"},{\"idx\":\"2\",\"type\":\"EMAIL\",\"parsed_data\":\""), escaped(email), ascii("\",\"timestamp\":")),
+                ascii(",\"refs\":\"\"}]")
+            }, new int[] { LOCATION, TIMESTAMP, TIMESTAMP });
+        }
+    }
+
+    private final Template template;
+    private final String location;
+    private final String timestamp;
+
+    public HandlePayload(Template template, String location, long timestamp) {
+        this.template = template;
+        this.location = location;
+        this.timestamp = Long.toString(timestamp);
+        setContentType(ContentType.APPLICATION_JSON.toString());
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    @Override
+    public long getContentLength() {
+        long length = this.template.length;
+        for (int hole : this.template.holes)
+            length += hole == LOCATION ? escapedLength(this.location) : this.timestamp.length();
+        return length;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        byte[] buffer = new byte[512];
+        out.write(this.template.parts[0]);
+        for (int i = 0; i < this.template.holes.length; i++) {
+            if (this.template.holes[i] == LOCATION)
+                writeEscaped(out, this.location, buffer);
+            else
+                writeEscaped(out, this.timestamp, buffer);
+            out.write(this.template.parts[i + 1]);
+        }
+        out.flush();
+    }
+
+    /*
+    the async client reads the body from a stream
+    */
+    @Override
+    public InputStream getContent() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) getContentLength());
+        writeTo(out);
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    @Override
+    public String toString() {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) getContentLength());
+            writeTo(out);
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return super.toString();
+        }
+    }
+
+    /*
+    the number of UTF-8 bytes of the string escaped as the content of a JSON string
+    */
+    static int escapedLength(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+                length += 2;
+            else if (c < 0x20)
+                length += 6;
+            else if (c < 0x80)
+                length += 1;
+            else if (c < 0x800)
+                length += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c))
+                length += 1;
+            else
+                length += 3;
+        }
+        return length;
+    }
+
+    /*
+    write the string escaped as the content of a JSON string, in UTF-8, through the buffer
+    */
+    static void writeEscaped(OutputStream out, String s, byte[] buffer) throws IOException {
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            if (n > buffer.length - 6) {
+                out.write(buffer, 0, n);
+                n = 0;
+            }
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                buffer[n++] = '\\';
+                buffer[n++] = (byte) c;
+            } else if (c < 0x20) {
+                buffer[n++] = '\\';
+                buffer[n++] = 'u';
+                buffer[n++] = '0';
+                buffer[n++] = '0';
+                buffer[n++] = HEX[c >> 4];
+                buffer[n++] = HEX[c & 0xf];
+            } else if (c < 0x80) {
+                buffer[n++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[n++] = (byte) (0xc0 | (c >> 6));
+                buffer[n++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buffer[n++] = (byte) (0xf0 | (cp >> 18));
+                buffer[n++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buffer[n++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buffer[n++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // a lone surrogate can't be encoded, replaced like the JDK's encoder does
+                buffer[n++] = '?';
+            } else {
+                buffer[n++] = (byte) (0xe0 | (c >> 12));
+                buffer[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[n++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        out.write(buffer, 0, n);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] escaped(String s) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(escapedLength(s));
+        try {
+            writeEscaped(out, s, new byte[512]);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts)
+            out.write(part, 0, part.length);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,100 @@
+package nl.knaw.meertens.pid;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.List;
+
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.URIBuilder;
+
+/**
+ * The REST API of a PID server: how the calls of a PIDService are turned into
+ * HTTP requests, and the responses into results. There is one for Handle v8,
+ * {@link HandleV8Protocol}, and one for EPIC v2, {@link EpicV2Protocol}; a
+ * PIDService picks one by its configuration, and sends the requests through
+ * its {@link HandleTransport}.
+ *
+ * A handle argument is either prefix/suffix or, for Handle v8, just a suffix
+ * under the configured prefix, as the PIDService calls have always taken them.
+ */
+abstract class HandleProtocol {
+
+    protected final String host;
+    protected final String handlePrefix;
+
+    protected HandleProtocol(String host, String handlePrefix) {
+        this.host = host;
+        this.handlePrefix = handlePrefix;
+    }
+
+    /**
+     * The API version, "8" or "2", as in the logs and the test mode messages.
+     */
+    abstract String getVersion();
+
+    /*
+    the full handle, i.e., prefix/suffix, of a handle argument
+    */
+    String handle(String a_handle) {
+        return a_handle.contains("/") ? a_handle : this.handlePrefix + "/" + a_handle;
+    }
+
+    abstract HttpUriRequest newCreateRequest(String uuid, String a_location) throws IOException;
+
+    abstract PIDService.ResponseHandler<String> createHandler(String uuid, String a_location);
+
+    /*
+    a PUT that creates the handle, or overwrites it if it already exists
+    */
+    abstract HttpUriRequest newUpsertRequest(String suffix, String a_location) throws IOException;
+
+    /*
+    returns true if the handle was created and false if it was updated
+    */
+    abstract PIDService.ResponseHandler<Boolean> upsertHandler(String suffix, String a_location);
+
+    abstract HttpUriRequest newUpdateRequest(String a_handle, String a_location) throws IOException;
+
+    abstract PIDService.ResponseHandler<Void> updateHandler(String a_handle, String a_location);
+
+    abstract HttpUriRequest newGetRequest(String a_handle) throws IOException;
+
+    /*
+    the record of the handle, or null if it doesn't exist
+    */
+    abstract PIDService.ResponseHandler<HandleRecord> recordHandler(String a_handle);
+
+    /*
+    whether the listing is split in pages, otherwise page and pageSize are ignored
+    */
+    abstract boolean isPaged();
+
+    abstract HttpUriRequest newListRequest(int page, int pageSize) throws IOException;
+
+    /*
+    the suffixes on a page of the listing
+    */
+    abstract PIDService.ResponseHandler<List<String>> listHandler();
+
+    /*
+    the full handle deleted for a handle argument of a delete
+    */
+    abstract String deletedHandle(String a_handle);
+
+    abstract HttpUriRequest newDeleteRequest(String a_handle) throws IOException;
+
+    abstract PIDService.ResponseHandler<Void> deleteHandler(String a_handle);
+
+    static URI noRedirect(String uri) throws IOException {
+        return setParameter(uri, "redirect", "no");
+    }
+
+    static URI setParameter(String uri, String name, String value) throws IOException {
+        try {
+            return new URIBuilder(uri).setParameter(name, value).build();
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid handle URI["+uri+"]", e);
+        }
+    }
+}
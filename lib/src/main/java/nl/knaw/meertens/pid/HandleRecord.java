@@ -0,0 +1,316 @@
+package nl.knaw.meertens.pid;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * All the values of a handle, as returned by the PID server: besides the URL
+ * also, e.g., the EMAIL, a CHECKSUM, the HS_ADMIN or custom types, each with
+ * its index, TTL and timestamp. The location is a projection of the record.
+ */
+public class HandleRecord {
+
+    public static final String URL = "URL";
+
+    /**
+     * A typed value of a handle. The data of a value that isn't a string,
+     * e.g., of an HS_ADMIN, is given as JSON.
+     */
+    public static class Value {
+        private final int index;
+        private final String type;
+        private final String format;
+        private final String data;
+        private final long ttl;
+        private final String timestamp;
+
+        public Value(int index, String type, String format, String data, long ttl, String timestamp) {
+            this.index = index;
+            this.type = type;
+            this.format = format;
+            this.data = data;
+            this.ttl = ttl;
+            this.timestamp = timestamp;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * The format of the data, e.g., string or admin, or null if the server didn't say.
+         */
+        public String getFormat() {
+            return format;
+        }
+
+        public String getData() {
+            return data;
+        }
+
+        /**
+         * The TTL in seconds, or -1 if the server didn't say.
+         */
+        public long getTtl() {
+            return ttl;
+        }
+
+        /**
+         * The timestamp as given by the server, or null.
+         */
+        public String getTimestamp() {
+            return timestamp;
+        }
+
+        @Override
+        public String toString() {
+            return index + ":" + type + "=" + data;
+        }
+    }
+
+    private final String handle;
+    private final List<Value> values;
+
+    public HandleRecord(String handle, List<Value> values) {
+        this.handle = handle;
+        this.values = Collections.unmodifiableList(new ArrayList<Value>(values));
+    }
+
+    public String getHandle() {
+        return handle;
+    }
+
+    public List<Value> getValues() {
+        return values;
+    }
+
+    /**
+     * The value at this index, or null.
+     */
+    public Value getValue(int index) {
+        for (Value value : this.values) {
+            if (value.getIndex() == index)
+                return value;
+        }
+        return null;
+    }
+
+    /**
+     * The values of this type, in the order of the record.
+     */
+    public List<Value> getValues(String type) {
+        List<Value> values = new ArrayList<Value>();
+        for (Value value : this.values) {
+            if (type.equals(value.getType()))
+                values.add(value);
+        }
+        return values;
+    }
+
+    /**
+     * The data of the first value of this type, or null if there is none.
+     */
+    public String getData(String type) {
+        for (Value value : this.values) {
+            if (type.equals(value.getType()))
+                return value.getData();
+        }
+        return null;
+    }
+
+    /**
+     * The location the handle refers to, i.e., its first URL, or null if it has none.
+     */
+    public String getLocation() {
+        return getData(URL);
+    }
+
+    @Override
+    public String toString() {
+        return this.handle + this.values;
+    }
+
+    /*
+    a Handle v8 response: {"handle":...,"values":[{"index":1,"type":"URL","data":{"format":"string","value":...},"ttl":86400,"timestamp":...},...]}
+    */
+    static HandleRecord parseHandle(JsonReader json, String handle) throws IOException {
+        List<Value> values = new ArrayList<Value>();
+        json.beginObject();
+        while (json.hasNext()) {
+            String name = json.nextName();
+            if (name.equals("handle") && json.peek() == JsonReader.Token.STRING) {
+                handle = json.nextString();
+            } else if (name.equals("values")) {
+                json.beginArray();
+                while (json.hasNext()) {
+                    int index = 0;
+                    String type = null;
+                    String format = null;
+                    String data = null;
+                    long ttl = -1L;
+                    String timestamp = null;
+                    json.beginObject();
+                    while (json.hasNext()) {
+                        switch (json.nextName()) {
+                            case "index":
+                                index = (int) json.nextLong();
+                                break;
+                            case "type":
+                                type = json.nextString();
+                                break;
+                            case "data":
+                                if (json.peek() != JsonReader.Token.BEGIN_OBJECT) {
+                                    data = readValue(json);
+                                    break;
+                                }
+                                json.beginObject();
+                                while (json.hasNext()) {
+                                    String field = json.nextName();
+                                    if (field.equals("format"))
+                                        format = json.nextString();
+                                    else if (field.equals("value"))
+                                        data = readValue(json);
+                                    else
+                                        json.skipValue();
+                                }
+                                json.endObject();
+                                break;
+                            case "ttl":
+                                ttl = json.nextLong();
+                                break;
+                            case "timestamp":
+                                timestamp = readValue(json);
+                                break;
+                            default:
+                                json.skipValue();
+                        }
+                    }
+                    json.endObject();
+                    values.add(new Value(index, type, format, data, ttl, timestamp));
+                }
+                json.endArray();
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+        return new HandleRecord(handle, values);
+    }
+
+    /*
+    an EPIC v2 response: [{"idx":"1","type":"URL","parsed_data":...,"timestamp":...,"ttl":...},...]
+    */
+    static HandleRecord parseEpic(JsonReader json, String handle) throws IOException {
+        List<Value> values = new ArrayList<Value>();
+        json.beginArray();
+        while (json.hasNext()) {
+            int index = 0;
+            String type = null;
+            String data = null;
+            long ttl = -1L;
+            String timestamp = null;
+            json.beginObject();
+            while (json.hasNext()) {
+                switch (json.nextName()) {
+                    case "idx":
+                        index = (int) json.nextLong();
+                        break;
+                    case "type":
+                        type = json.nextString();
+                        break;
+                    case "parsed_data":
+                        data = readValue(json);
+                        break;
+                    case "ttl":
+                        ttl = json.nextLong();
+                        break;
+                    case "timestamp":
+                        timestamp = readValue(json);
+                        break;
+                    default:
+                        json.skipValue();
+                }
+            }
+            json.endObject();
+            values.add(new Value(index, type, null, data, ttl, timestamp));
+        }
+        json.endArray();
+        return new HandleRecord(handle, values);
+    }
+
+    /*
+    a string, number or boolean as is, null as null, and an object or array as JSON
+    */
+    private static String readValue(JsonReader json) throws IOException {
+        switch (json.peek()) {
+            case NULL:
+                json.nextNull();
+                return null;
+            case BEGIN_OBJECT:
+            case BEGIN_ARRAY:
+                StringBuilder sb = new StringBuilder();
+                copy(json, sb);
+                return sb.toString();
+            default:
+                return json.nextString();
+        }
+    }
+
+    private static void copy(JsonReader json, StringBuilder sb) throws IOException {
+        switch (json.peek()) {
+            case BEGIN_OBJECT:
+                json.beginObject();
+                sb.append('{');
+                while (json.hasNext()) {
+                    if (sb.charAt(sb.length() - 1) != '{')
+                        sb.append(',');
+                    quote(json.nextName(), sb);
+                    sb.append(':');
+                    copy(json, sb);
+                }
+                json.endObject();
+                sb.append('}');
+                break;
+            case BEGIN_ARRAY:
+                json.beginArray();
+                sb.append('[');
+                while (json.hasNext()) {
+                    if (sb.charAt(sb.length() - 1) != '[')
+                        sb.append(',');
+                    copy(json, sb);
+                }
+                json.endArray();
+                sb.append(']');
+                break;
+            case STRING:
+                quote(json.nextString(), sb);
+                break;
+            case NULL:
+                json.nextNull();
+                sb.append("null");
+                break;
+            default:
+                sb.append(json.nextString());
+        }
+    }
+
+    private static void quote(String s, StringBuilder sb) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if (c < 0x20)
+                sb.append(String.format("\\u%04x", (int) c));
+            else
+                sb.append(c);
+        }
+        sb.append('"');
+    }
+}
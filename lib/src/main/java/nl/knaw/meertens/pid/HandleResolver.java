@@ -0,0 +1,277 @@
+package nl.knaw.meertens.pid;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves handles for a PIDService at the fastest of several endpoints: the
+ * configured PID server and read-only mirrors, e.g., the global proxy, as
+ * configured by an optional section:
+ * <pre>
+ * &lt;resolve&gt;
+ *   &lt;mirror&gt;https://hdl.handle.net/api/handles/&lt;/mirror&gt;   the Handle REST API of a mirror, repeatable
+ *   &lt;primary&gt;true&lt;/primary&gt;         resolve at the configured server too
+ *   &lt;hedgeAfter&gt;100&lt;/hedgeAfter&gt;    milliseconds before the next endpoint is asked as well
+ *   &lt;downtime&gt;30&lt;/downtime&gt;        seconds an endpoint is skipped after it failed
+ * &lt;/resolve&gt;
+ * </pre>
+ * A lookup goes to the healthy endpoint with the lowest (moving average)
+ * latency. If it hasn't answered after hedgeAfter, the next endpoint is asked
+ * too, and the first answer wins; an endpoint that fails is skipped for a
+ * while, and the next one is asked right away. A 404 is an answer, so a
+ * mirror that lags behind can miss a new handle for a while.
+ *
+ * The configured server is asked like any other call to it: throttled,
+ * measured, traced and retried. The mirrors are asked once, their failures
+ * are handled by hedging and failing over to the next endpoint.
+ *
+ * Only lookups are resolved this way, creates, updates and deletes (and
+ * their checks) always go to the configured server.
+ */
+class HandleResolver implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(HandleResolver.class.getName());
+
+    public static final long DEFAULT_HEDGE_AFTER = 100L;
+    public static final int DEFAULT_DOWNTIME = 30;
+
+    // weight of a new latency in the moving average
+    private static final double ALPHA = 0.2;
+
+    /*
+    a server to resolve handles at, with its latency and health
+    */
+    private static class Endpoint {
+        private final String name;
+        private final HandleProtocol protocol;
+        private final HandleTransport transport;
+        private final boolean primary;
+        // moving average in nanoseconds, 0 till the first answer
+        private volatile double latency = 0.0;
+        private volatile long downUntil = 0L;
+
+        Endpoint(String name, HandleProtocol protocol, HandleTransport transport, boolean primary) {
+            this.name = name;
+            this.protocol = protocol;
+            this.transport = transport;
+            this.primary = primary;
+        }
+
+        synchronized void success(long nanos) {
+            this.latency = this.latency == 0.0 ? nanos : this.latency + ALPHA * (nanos - this.latency);
+            this.downUntil = 0L;
+        }
+
+        void failure(long downtime) {
+            this.downUntil = System.currentTimeMillis() + downtime;
+        }
+
+        boolean isUp(long now) {
+            return this.downUntil - now <= 0;
+        }
+
+        double getLatency() {
+            return this.latency;
+        }
+
+        @Override
+        public String toString() {
+            return this.name;
+        }
+    }
+
+    /*
+    the state of a single lookup
+    */
+    private static class Resolution {
+        private final String handle;
+        private final List<Endpoint> endpoints;
+        // the first ones are healthy, the others are only asked if these fail, not to hedge
+        private final int healthy;
+        private final CompletableFuture<HandleRecord> result = new CompletableFuture<>();
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile Throwable failure = null;
+
+        Resolution(String handle, List<Endpoint> endpoints, int healthy) {
+            this.handle = handle;
+            this.endpoints = endpoints;
+            this.healthy = healthy;
+        }
+    }
+
+    private final AsyncPIDService primary;
+    private final List<Endpoint> endpoints = new ArrayList<>();
+    private final HandleTransport mirrors;
+    // whether the mirror pool is ours, or shared by the PIDServices of a server
+    private final boolean ownsMirrors;
+    private final long hedgeAfter;
+    private final long downtime;
+
+    /*
+    the resolver of the <resolve> config, or null if there are no mirrors; it connects to the mirrors by the pool, or by its own if it's null
+    */
+    static HandleResolver fromConfiguration(Configuration config, PIDService ps, HandleTransport pool) {
+        String[] mirrors = config.getStringArray("resolve.mirror");
+        if (mirrors.length == 0)
+            return null;
+        return new HandleResolver(config, ps, mirrors, pool);
+    }
+
+    private HandleResolver(Configuration config, PIDService ps, String[] mirrors, HandleTransport pool) {
+        try {
+            // shares the transport, throttle, trace and retry policy of the PIDService
+            this.primary = new AsyncPIDService(ps);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't resolve at the configured server["+ps.getProtocol().host+"]", e);
+        }
+        this.hedgeAfter = config.getLong("resolve.hedgeAfter", DEFAULT_HEDGE_AFTER);
+        this.downtime = config.getInt("resolve.downtime", DEFAULT_DOWNTIME) * 1000L;
+        if (config.getBoolean("resolve.primary", true))
+            this.endpoints.add(new Endpoint(ps.getProtocol().host, ps.getProtocol(), ps.getTransport(), true));
+        // the mirrors are public servers, without our client certificate or basic authentication
+        this.ownsMirrors = pool == null;
+        this.mirrors = pool != null ? pool : HandleConnectionPool.withDefaultTrust(config);
+        for (String mirror : mirrors) {
+            String host = mirror.endsWith("/") ? mirror : mirror + "/";
+            this.endpoints.add(new Endpoint(host, new HandleV8Protocol(host, ps.getHandlePrefix(), null, false), this.mirrors, false));
+        }
+        logger.debug("HandleResolver "+this.endpoints+" [hedgeAfter="+this.hedgeAfter+"ms][downtime="+(this.downtime/1000)+"s]");
+    }
+
+    /**
+     * The record of the handle, or null if it doesn't exist, waiting for the
+     * first endpoint that answers.
+     */
+    HandleRecord get(String a_handle) throws IOException, HandleCreationException {
+        try {
+            return resolve(a_handle).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while resolving handle["+a_handle+"]");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof HandleCreationException)
+                throw (HandleCreationException) cause;
+            throw new IOException("Handle resolution failed["+a_handle+"]", cause);
+        }
+    }
+
+    /**
+     * The record of the handle, or null if it doesn't exist.
+     */
+    CompletableFuture<HandleRecord> resolve(String a_handle) {
+        // the healthy endpoints, fastest first, then the ones that failed recently, in case all others fail too
+        long now = System.currentTimeMillis();
+        List<Endpoint> order = new ArrayList<>(this.endpoints.size());
+        List<Endpoint> down = new ArrayList<>();
+        for (Endpoint endpoint : this.endpoints)
+            (endpoint.isUp(now) ? order : down).add(endpoint);
+        order.sort(Comparator.comparingDouble(Endpoint::getLatency));
+        int healthy = order.size();
+        order.addAll(down);
+        Resolution resolution = new Resolution(a_handle, order, healthy);
+        launch(resolution);
+        return resolution.result;
+    }
+
+    /*
+    ask the next endpoint, and hedge by asking the one after it too if there's no answer in time
+    */
+    private void launch(final Resolution resolution) {
+        final int i = resolution.next.getAndIncrement();
+        final int n = resolution.endpoints.size();
+        if (i >= n)
+            return;
+        final Endpoint endpoint = resolution.endpoints.get(i);
+        resolution.pending.incrementAndGet();
+        final long start = System.nanoTime();
+        final CompletableFuture<HandleRecord> fetched = fetch(endpoint, resolution.handle);
+        // once another endpoint answered, or the caller gave up, this request lost the race
+        resolution.result.whenComplete((HandleRecord record, Throwable t) -> fetched.cancel(false));
+        fetched.whenComplete((HandleRecord record, Throwable t) -> {
+            if (t == null) {
+                // only the winner says something about its latency
+                if (resolution.result.complete(record))
+                    endpoint.success(System.nanoTime() - start);
+            } else if (!resolution.result.isDone()) {
+                Throwable cause = unwrap(t);
+                endpoint.failure(this.downtime);
+                resolution.failure = cause;
+                logger.warn("Resolving handle["+resolution.handle+"] at ["+endpoint+"] failed["+cause+"]");
+                launch(resolution);
+            }
+            if (resolution.pending.decrementAndGet() == 0 && resolution.next.get() >= n && !resolution.result.isDone())
+                resolution.result.completeExceptionally(new IOException("Handle resolution failed["+resolution.handle+"] at all "+n+" endpoints", resolution.failure));
+        });
+        if (i + 1 < resolution.healthy) {
+            RetryPolicy.delay(this.hedgeAfter).thenRun(() -> {
+                if (!resolution.result.isDone() && resolution.next.get() == i + 1) {
+                    logger.debug("Handle["+resolution.handle+"] not resolved by ["+endpoint+"] in "+this.hedgeAfter+"ms, hedging");
+                    launch(resolution);
+                }
+            });
+        }
+    }
+
+    /*
+    fetch the record at the endpoint; cancelling the future aborts the request
+    */
+    private CompletableFuture<HandleRecord> fetch(final Endpoint endpoint, String a_handle) {
+        if (endpoint.primary)
+            return this.primary.fetch(a_handle);
+        final HttpUriRequest request;
+        try {
+            request = endpoint.protocol.newGetRequest(a_handle);
+        } catch (IOException e) {
+            CompletableFuture<HandleRecord> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        final PIDService.ResponseHandler<HandleRecord> handler = endpoint.protocol.recordHandler(a_handle);
+        final CompletableFuture<HttpResponse> exchange = endpoint.transport.executeAsync(request);
+        final CompletableFuture<HandleRecord> record = exchange.handle((HttpResponse response, Throwable t) -> {
+            if (t != null)
+                throw new CompletionException(unwrap(t));
+            try {
+                return handler.handle(response);
+            } catch (IOException | HandleCreationException e) {
+                throw new CompletionException(e);
+            }
+        });
+        AsyncPIDService.cancelWith(record, exchange);
+        return record;
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        while (t instanceof CompletionException && t.getCause() != null)
+            t = t.getCause();
+        return t;
+    }
+
+    /*
+    close the connections to the mirrors, unless they're shared; the transport of the configured server belongs to the PIDService
+    */
+    @Override
+    public void close() throws IOException {
+        if (this.ownsMirrors)
+            this.mirrors.close();
+    }
+}
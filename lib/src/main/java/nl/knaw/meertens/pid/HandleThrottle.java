@@ -0,0 +1,226 @@
+package nl.knaw.meertens.pid;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Client-side throttling of the requests to one Handle server: a token bucket
+ * limits the request rate, and an AIMD (additive increase, multiplicative
+ * decrease) limit bounds the number of requests in flight. The concurrency
+ * limit is halved when the server answers 429 or 503, a request fails, or the
+ * latency jumps well above its running average, and grows by one request per
+ * round of successful requests, up to the configured maximum.
+ *
+ * It's configured in the PIDService configuration by
+ * <pre>
+ * &lt;maxRequestsPerSecond&gt;50&lt;/maxRequestsPerSecond&gt;
+ * &lt;maxConcurrent&gt;16&lt;/maxConcurrent&gt;
+ * </pre>
+ * and both are optional; without either there is no throttling at all.
+ */
+public class HandleThrottle {
+
+    private static final Logger logger = LoggerFactory.getLogger(HandleThrottle.class.getName());
+
+    // a latency this many times the average counts as congestion
+    public static final double LATENCY_FACTOR = 3.0;
+    // weight of a new latency sample in the running average
+    private static final double LATENCY_WEIGHT = 0.1;
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+        Thread t = new Thread(r, "epicify-throttle");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final double rate;
+    private final int maxConcurrent;
+
+    private double tokens;
+    private long refilled;
+    private double limit;
+    private int inFlight = 0;
+    private double latency = 0.0;
+    private long decreased = 0L;
+    private boolean scheduled = false;
+    private final Deque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+
+    /**
+     * The throttle configured for a PIDService, or null if it has none.
+     */
+    public static HandleThrottle fromConfiguration(Configuration config) {
+        double rate = config.getDouble("maxRequestsPerSecond", 0.0);
+        int maxConcurrent = config.getInt("maxConcurrent", 0);
+        if (rate <= 0.0 && maxConcurrent <= 0)
+            return null;
+        return new HandleThrottle(rate, maxConcurrent);
+    }
+
+    /**
+     * @param rate max requests per second, or 0 for no rate limit
+     * @param maxConcurrent max requests in flight, or 0 for no concurrency limit
+     */
+    public HandleThrottle(double rate, int maxConcurrent) {
+        this.rate = rate;
+        this.maxConcurrent = maxConcurrent;
+        this.tokens = Math.max(1.0, rate);
+        this.refilled = System.nanoTime();
+        this.limit = maxConcurrent;
+        logger.debug("HandleThrottle [maxRequestsPerSecond="+rate+"][maxConcurrent="+maxConcurrent+"]");
+    }
+
+    /**
+     * The current (adaptive) limit on requests in flight, or 0 if there is none.
+     */
+    public synchronized int getLimit() {
+        return (int) this.limit;
+    }
+
+    public synchronized int getInFlight() {
+        return this.inFlight;
+    }
+
+    /**
+     * Wait till a request may be sent.
+     */
+    public void acquire() throws InterruptedException {
+        synchronized (this) {
+            while (true) {
+                if (tryAcquire())
+                    return;
+                long wait = nanosUntilToken();
+                if (wait > 0)
+                    TimeUnit.NANOSECONDS.timedWait(this, wait);
+                else
+                    wait();
+            }
+        }
+    }
+
+    /**
+     * A future that completes, without blocking a thread, when a request may be sent.
+     */
+    public CompletableFuture<Void> acquireAsync() {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        synchronized (this) {
+            this.waiters.addLast(future);
+        }
+        drain();
+        return future;
+    }
+
+    /**
+     * Report the outcome of a request.
+     *
+     * @param status the HTTP status code, or -1 if the request failed without one
+     * @param nanos the latency of the request
+     */
+    public void release(int status, long nanos) {
+        synchronized (this) {
+            this.inFlight--;
+            if (this.maxConcurrent > 0)
+                adapt(status, nanos);
+            notifyAll();
+        }
+        drain();
+    }
+
+    /**
+     * Give back the permit of a request that was cancelled, e.g., a hedged
+     * lookup that lost; it says nothing about the server, so the limit stays.
+     */
+    public void cancel() {
+        synchronized (this) {
+            this.inFlight--;
+            notifyAll();
+        }
+        drain();
+    }
+
+    private void adapt(int status, long nanos) {
+        boolean congested = status == 429 || status == 503 || status < 0;
+        if (!congested && this.latency > 0.0 && nanos > LATENCY_FACTOR * this.latency)
+            congested = true;
+        if (status >= 0)
+            this.latency = this.latency == 0.0 ? nanos : (1.0 - LATENCY_WEIGHT) * this.latency + LATENCY_WEIGHT * nanos;
+        long now = System.nanoTime();
+        if (congested) {
+            // decrease at most once per round trip, a burst of 503s is one congestion signal
+            if (now - this.decreased > this.latency) {
+                this.limit = Math.max(1.0, this.limit / 2.0);
+                this.decreased = now;
+                logger.info("Handle server congested["+status+"], concurrency limit decreased to "+(int)this.limit);
+            }
+        } else if (this.limit < this.maxConcurrent) {
+            this.limit = Math.min(this.maxConcurrent, this.limit + 1.0 / this.limit);
+        }
+    }
+
+    private boolean tryAcquire() {
+        if (this.maxConcurrent > 0 && this.inFlight >= (int) this.limit)
+            return false;
+        if (this.rate > 0.0) {
+            refill();
+            if (this.tokens < 1.0)
+                return false;
+            this.tokens -= 1.0;
+        }
+        this.inFlight++;
+        return true;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        this.tokens = Math.min(Math.max(1.0, this.rate), this.tokens + (now - this.refilled) * this.rate / 1e9);
+        this.refilled = now;
+    }
+
+    private long nanosUntilToken() {
+        if (this.rate <= 0.0 || (this.maxConcurrent > 0 && this.inFlight >= (int) this.limit))
+            return 0L;
+        refill();
+        return this.tokens >= 1.0 ? 0L : Math.max(1L, (long) ((1.0 - this.tokens) * 1e9 / this.rate));
+    }
+
+    /*
+    hand out permits to the waiting async requests, and schedule another round if they wait for tokens
+    */
+    private void drain() {
+        while (true) {
+            CompletableFuture<Void> next;
+            synchronized (this) {
+                if (this.waiters.isEmpty())
+                    return;
+                if (!tryAcquire()) {
+                    long wait = nanosUntilToken();
+                    if (wait > 0 && !this.scheduled) {
+                        this.scheduled = true;
+                        timer.schedule(() -> {
+                            synchronized (this) {
+                                this.scheduled = false;
+                            }
+                            drain();
+                        }, wait, TimeUnit.NANOSECONDS);
+                    }
+                    return;
+                }
+                next = this.waiters.pollFirst();
+            }
+            if (!next.complete(null)) {
+                // cancelled while waiting, give the permit back
+                synchronized (this) {
+                    this.inFlight--;
+                    notifyAll();
+                }
+            }
+        }
+    }
+}
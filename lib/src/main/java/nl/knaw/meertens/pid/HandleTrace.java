@@ -0,0 +1,153 @@
+package nl.knaw.meertens.pid;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.BufferedHttpEntity;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Traces the requests of a PIDService, and its AsyncPIDService, to the PID
+ * server, and their responses: method, URI, headers, status, latency and
+ * (optionally) the bodies. It logs at TRACE level to its own logger,
+ * {@code nl.knaw.meertens.pid.HandleTrace}, and costs nothing unless that is
+ * enabled; then a sample of the requests is traced, as configured by an
+ * optional section in the PIDService configuration:
+ * <pre>
+ * &lt;trace&gt;
+ *   &lt;sample&gt;0.01&lt;/sample&gt;     fraction of the requests traced, default all
+ *   &lt;body&gt;true&lt;/body&gt;         include the request and response bodies
+ *   &lt;maxBody&gt;2048&lt;/maxBody&gt;   max characters of a body traced
+ * &lt;/trace&gt;
+ * </pre>
+ * Credentials are redacted: the values of the Authorization, Proxy-Authorization,
+ * Cookie and Set-Cookie headers are traced as ***. Only the response body of a traced
+ * request is buffered.
+ */
+public class HandleTrace {
+
+    private static final Logger logger = LoggerFactory.getLogger(HandleTrace.class.getName());
+
+    public static final int DEFAULT_MAX_BODY = 2048;
+
+    private static final String REDACTED = "***";
+
+    private final double sample;
+    private final boolean body;
+    private final int maxBody;
+
+    public static HandleTrace fromConfiguration(Configuration config) {
+        return new HandleTrace(config.getDouble("trace.sample", 1.0), config.getBoolean("trace.body", false), config.getInt("trace.maxBody", DEFAULT_MAX_BODY));
+    }
+
+    /**
+     * @param sample fraction of the requests traced
+     * @param body whether to trace the bodies
+     * @param maxBody max characters of a body traced
+     */
+    public HandleTrace(double sample, boolean body, int maxBody) {
+        this.sample = sample;
+        this.body = body;
+        this.maxBody = maxBody;
+    }
+
+    /**
+     * Whether to trace the next request, the only call made when tracing is off.
+     */
+    public boolean sample() {
+        if (!logger.isTraceEnabled() || this.sample <= 0.0)
+            return false;
+        return this.sample >= 1.0 || ThreadLocalRandom.current().nextDouble() < this.sample;
+    }
+
+    /*
+    trace a sampled request before it's sent
+    */
+    void request(HttpUriRequest request) {
+        StringBuilder trace = new StringBuilder("> ").append(request.getMethod()).append(' ').append(request.getURI());
+        headers(trace, request.getAllHeaders());
+        if (this.body && request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            // a streaming entity can't be written twice
+            if (entity != null && entity.isRepeatable()) {
+                try {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    entity.writeTo(out);
+                    body(trace, out.toByteArray());
+                } catch (IOException e) {
+                    trace.append(" [body unavailable: ").append(e).append(']');
+                }
+            }
+        }
+        logger.trace(trace.toString());
+    }
+
+    /*
+    trace the response to a sampled request; with bodies the entity is buffered first, so it can still be read by the handler
+    */
+    void response(HttpUriRequest request, HttpResponse response, long nanos) {
+        StringBuilder trace = new StringBuilder("< ").append(request.getMethod()).append(' ').append(request.getURI())
+            .append(" [").append(response.getStatusLine()).append("] in ").append(nanos / 1000000L).append("ms");
+        headers(trace, response.getAllHeaders());
+        HttpEntity entity = response.getEntity();
+        if (this.body && entity != null) {
+            try {
+                BufferedHttpEntity buffered = new BufferedHttpEntity(entity);
+                response.setEntity(buffered);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                buffered.writeTo(out);
+                body(trace, out.toByteArray());
+            } catch (IOException e) {
+                trace.append(" [body unavailable: ").append(e).append(']');
+            }
+        }
+        logger.trace(trace.toString());
+    }
+
+    /*
+    trace a sampled request that got no response
+    */
+    void failure(HttpUriRequest request, Throwable t, long nanos) {
+        logger.trace("< " + request.getMethod() + " " + request.getURI() + " failed[" + t + "] in " + (nanos / 1000000L) + "ms");
+    }
+
+    private static void headers(StringBuilder trace, Header[] headers) {
+        for (Header header : headers) {
+            trace.append(" [").append(header.getName()).append(": ");
+            trace.append(isSecret(header.getName()) ? REDACTED : header.getValue()).append(']');
+        }
+    }
+
+    private static boolean isSecret(String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "authorization":
+            case "proxy-authorization":
+            case "cookie":
+            case "set-cookie":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void body(StringBuilder trace, byte[] bytes) {
+        String s = new String(bytes, StandardCharsets.UTF_8);
+        trace.append(" [");
+        if (s.length() > this.maxBody)
+            trace.append(s, 0, this.maxBody).append("...(").append(s.length()).append(" chars)");
+        else
+            trace.append(s);
+        trace.append(']');
+    }
+}
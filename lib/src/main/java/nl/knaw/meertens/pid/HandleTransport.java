@@ -0,0 +1,53 @@
+package nl.knaw.meertens.pid;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * Sends the requests of a PIDService, and its AsyncPIDService, to the PID
+ * server. The {@link HandleProtocol} of the PIDService builds the requests and
+ * interprets the responses, so a transport only moves them; it's chosen by
+ * the PIDService configuration
+ * <pre>
+ * &lt;transport&gt;pool&lt;/transport&gt;
+ * </pre>
+ * <ul>
+ * <li>{@code pool}, the default: pooled HTTP/1.1 connections, see {@link HandleConnectionPool}</li>
+ * <li>{@code http2}: one multiplexed HTTP/2 connection to a Handle v8 server, see {@link Http2Client}</li>
+ * <li>{@code memory}: no network at all, an in-process PID server, see {@link MemoryHandleTransport}</li>
+ * </ul>
+ * or passed to the PIDService constructor, e.g., one on top of another HTTP client.
+ */
+public interface HandleTransport extends Closeable {
+
+    /**
+     * Execute the request, waiting for its response. The caller has to close
+     * the response, after consuming its entity.
+     */
+    CloseableHttpResponse execute(HttpUriRequest request) throws IOException;
+
+    /**
+     * Execute the request without blocking a thread while waiting for the
+     * server; the entity of the response (if any) is buffered.
+     */
+    CompletableFuture<HttpResponse> executeAsync(HttpUriRequest request);
+
+    /**
+     * Close idle connections, e.g., after the client credentials have been
+     * reloaded, so new connections are set up with the new credentials.
+     */
+    default void closeIdleConnections() {
+    }
+
+    /**
+     * Report what only the transport knows, e.g., connection pool gauges or
+     * TLS handshake times, to the metrics hook of the PIDService.
+     */
+    default void setMetrics(HandleMetrics metrics) {
+    }
+}
@@ -0,0 +1,249 @@
+package nl.knaw.meertens.pid;
+
+import static nl.knaw.meertens.pid.PIDService.getResponseBody;
+import static nl.knaw.meertens.pid.PIDService.getResponseJson;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.URIBuilder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The REST API of a Handle v8 server, which authenticates the client by its
+ * certificate.
+ */
+class HandleV8Protocol extends HandleProtocol {
+
+    private static final Logger logger = LoggerFactory.getLogger(HandleV8Protocol.class.getName());
+
+    private final HandlePayload.Template payload;
+    // update only the URL value (index 1) of a handle, instead of rewriting all its values
+    private final boolean partialUpdate;
+
+    /*
+    a partial update of a handle that didn't exist: the PUT created it with only the URL, so without HS_ADMIN, and it should be deleted
+    */
+    @SuppressWarnings("serial")
+    static class PartialCreationException extends HandleCreationException {
+        private final String suffix;
+
+        PartialCreationException(String handle) {
+            super("Handle update failed. Handle["+handle+"] doesn't exist, the partial update created it without HS_ADMIN");
+            this.suffix = handle.substring(handle.indexOf('/') + 1);
+        }
+
+        String getSuffix() {
+            return this.suffix;
+        }
+    }
+
+    HandleV8Protocol(String host, String handlePrefix, String email, boolean partialUpdate) {
+        super(host, handlePrefix);
+        this.payload = HandlePayload.Template.handle(handlePrefix, email);
+        this.partialUpdate = partialUpdate;
+    }
+
+    @Override
+    String getVersion() {
+        return "8";
+    }
+
+    private HttpPut newPutRequest(String handle, String a_location) {
+        HttpPut httpput = new HttpPut(this.host + handle);
+        httpput.setHeader("Authorization", "Handle clientCert=\"true\"");
+        httpput.setEntity(new HandlePayload(this.payload, a_location, System.currentTimeMillis()));
+        return httpput;
+    }
+
+    @Override
+    HttpUriRequest newCreateRequest(String uuid, String a_location) {
+        String handle = this.handlePrefix + "/" + uuid;
+        return newPutRequest(handle, a_location);
+    }
+
+    @Override
+    PIDService.ResponseHandler<String> createHandler(String uuid, final String a_location) {
+        final String handle = this.handlePrefix + "/" + uuid;
+        return (HttpResponse response) -> {
+            int status = response.getStatusLine().getStatusCode();
+            if (status != HttpStatus.SC_CREATED && status != HttpStatus.SC_OK) {
+                logger.error("EPIC unexpected result[" + response.getStatusLine().toString()+"]");
+                throw new HandleCreationException("Handle creation failed. Unexpected failure: " + response.getStatusLine().toString() + ". " + getResponseBody(response));
+            }
+            //A resolvable handle is returned using the global resolver
+            logger.info( "Created handle["+handle+"] for location ["+a_location+"]");
+            return handle;
+        };
+    }
+
+    @Override
+    HttpUriRequest newUpsertRequest(String suffix, String a_location) throws IOException {
+        String handle = this.handlePrefix + "/" + suffix;
+        HttpPut httpput = newPutRequest(handle, a_location);
+        httpput.setURI(setParameter(httpput.getURI().toString(), "overwrite", "true"));
+        return httpput;
+    }
+
+    /*
+    the Handle server answers 201 when the PUT created the handle, and 200 when it overwrote it
+    */
+    @Override
+    PIDService.ResponseHandler<Boolean> upsertHandler(String suffix, final String a_location) {
+        final String handle = this.handlePrefix + "/" + suffix;
+        return (HttpResponse response) -> {
+            int status = response.getStatusLine().getStatusCode();
+            if (status == HttpStatus.SC_CREATED) {
+                logger.info( "Created handle["+handle+"] for location ["+a_location+"]");
+                return true;
+            }
+            if (status == HttpStatus.SC_OK) {
+                logger.info( "Updated handle["+handle+"] for location ["+a_location+"]");
+                return false;
+            }
+            logger.error("EPIC unexpected result[" + response.getStatusLine().toString()+"]");
+            throw new HandleCreationException("Handle upsert failed. Unexpected failure: " + response.getStatusLine().toString() + ". " + getResponseBody(response));
+        };
+    }
+
+    @Override
+    HttpUriRequest newUpdateRequest(String a_handle, String a_location) throws IOException {
+        String handle = handle(a_handle);
+        if (this.partialUpdate) {
+            HttpPut httpput = new HttpPut(setParameter(this.host + handle, "index", "1"));
+            httpput.setHeader("Authorization", "Handle clientCert=\"true\"");
+            httpput.setEntity(new HandlePayload(HandlePayload.Template.url(), a_location, System.currentTimeMillis()));
+            return httpput;
+        }
+        return newPutRequest(handle, a_location);
+    }
+
+    @Override
+    PIDService.ResponseHandler<Void> updateHandler(final String a_handle, final String a_location) {
+        return (HttpResponse response) -> {
+            // a PUT answers 200 when it replaced the handle and 201 when it created it; a partial PUT creates a handle with only the URL
+            int status = response.getStatusLine().getStatusCode();
+            if (this.partialUpdate && status == HttpStatus.SC_CREATED) {
+                logger.error("EPIC partial update created handle["+handle(a_handle)+"]");
+                throw new PartialCreationException(handle(a_handle));
+            }
+            if (status != HttpStatus.SC_OK && status != HttpStatus.SC_CREATED) {
+                logger.error("EPIC unexpected result[" + response.getStatusLine().toString()+"]");
+                throw new HandleCreationException("Handle update failed. Unexpected failure: " + response.getStatusLine().toString() + ". " + getResponseBody(response));
+            }
+            logger.info( "Updated handle["+handle(a_handle)+"] for location ["+a_location+"]");
+            return null;
+        };
+    }
+
+    @Override
+    HttpUriRequest newGetRequest(String a_handle) {
+        String handle = handle(a_handle);
+        HttpGet httpGet = new HttpGet(this.host + handle);
+//        httpGet.setHeader("Authorization", "Handle clientCert=\"true\"");
+        httpGet.setHeader("Content-Type", "application/json");
+        return httpGet;
+    }
+
+    @Override
+    PIDService.ResponseHandler<HandleRecord> recordHandler(final String a_handle) {
+        return (HttpResponse response) -> {
+            switch (response.getStatusLine().getStatusCode()) {
+                case HttpStatus.SC_OK:
+                    return HandleRecord.parseHandle(getResponseJson(response), handle(a_handle));
+                case HttpStatus.SC_NOT_FOUND:
+                    logger.warn("EPIC handle["+a_handle+"] doesn't exist[" + response.getStatusLine().getReasonPhrase()+"]");
+                    return null;
+                default:
+                    logger.error("EPIC unexpected result[" + response.getStatusLine().getReasonPhrase()+"]");
+                    throw new IOException("Handle retrieval failed["+a_handle+"]. Unexpected failure: " + response.getStatusLine().getReasonPhrase() + ". " + getResponseBody(response));
+            }
+        };
+    }
+
+    @Override
+    boolean isPaged() {
+        return true;
+    }
+
+    @Override
+    HttpUriRequest newListRequest(int page, int pageSize) throws IOException {
+        // the listing is at /api/handles, without the trailing slash of the handle URIs
+        String uri = this.host.endsWith("/") ? this.host.substring(0, this.host.length() - 1) : this.host;
+        try {
+            HttpGet httpGet = new HttpGet(new URIBuilder(uri)
+                .setParameter("prefix", this.handlePrefix)
+                .setParameter("page", "" + page)
+                .setParameter("pageSize", "" + pageSize)
+                .build());
+            httpGet.setHeader("Authorization", "Handle clientCert=\"true\"");
+            httpGet.setHeader("Accept", "application/json");
+            return httpGet;
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid handle URI["+uri+"]", e);
+        }
+    }
+
+    /*
+    the Handle server answers {"handles":["prefix/suffix",...],...}
+    */
+    @Override
+    PIDService.ResponseHandler<List<String>> listHandler() {
+        final String prefix = this.handlePrefix + "/";
+        return (HttpResponse response) -> {
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+                logger.error("EPIC unexpected result[" + response.getStatusLine().toString()+"]");
+                throw new IOException("Handle listing failed["+this.handlePrefix+"]. Unexpected failure: " + response.getStatusLine().toString() + ". " + getResponseBody(response));
+            }
+            JsonReader json = getResponseJson(response);
+            List<String> suffixes = new ArrayList<String>();
+            json.beginObject();
+            if (!json.findName("handles"))
+                return suffixes;
+            json.beginArray();
+            while (json.hasNext()) {
+                String handle = json.nextString();
+                suffixes.add(handle.startsWith(prefix) ? handle.substring(prefix.length()) : handle);
+            }
+            return suffixes;
+        };
+    }
+
+    /*
+    a v8 delete has always taken the suffix
+    */
+    @Override
+    String deletedHandle(String a_handle) {
+        return this.handlePrefix + "/" + a_handle;
+    }
+
+    @Override
+    HttpUriRequest newDeleteRequest(String a_handle) {
+        HttpDelete httpDel = new HttpDelete(this.host + this.handlePrefix + "/" + a_handle);
+        httpDel.setHeader("Authorization", "Handle clientCert=\"true\"");
+        httpDel.setHeader("Content-Type", "application/json");
+        httpDel.setHeader("Accept", "application/json");
+        return httpDel;
+    }
+
+    @Override
+    PIDService.ResponseHandler<Void> deleteHandler(final String a_handle) {
+        return (HttpResponse response) -> {
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+                logger.error("EPIC unexpected result[" + response.getStatusLine().toString()+"]");
+                throw new IOException("Handle retrieval failed["+a_handle+"]. Unexpected failure: " + response.getStatusLine().toString() + ". " + getResponseBody(response));
+            }
+            return null;
+        };
+    }
+}
@@ -0,0 +1,239 @@
+package nl.knaw.meertens.pid;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import javax.net.ssl.SSLContext;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.ssl.DefaultClientTlsStrategy;
+import org.apache.hc.client5.http.ssl.HttpsSupport;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.nio.ssl.TlsStrategy;
+import org.apache.hc.core5.http.ssl.TlsCiphers;
+import org.apache.hc.core5.http2.config.H2Config;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.reactor.IOReactorConfig;
+import org.apache.hc.core5.reactor.ssl.SSLBufferMode;
+import org.apache.hc.core5.reactor.ssl.TransportSecurityLayer;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An HTTP/2 client for a Handle v8 server that speaks it: all requests of a
+ * PIDService, and of its AsyncPIDService, are multiplexed as streams over a
+ * single TLS connection, instead of taking a pooled HTTP/1.1 connection each.
+ *
+ * It takes the same requests and gives the same responses as the
+ * {@link HandleConnectionPool}, so the PIDService builds and interprets them
+ * as before. The (buffered) bodies are small, so they are copied between the
+ * two HTTP stacks.
+ *
+ * It's enabled by the PIDService configuration
+ * <pre>
+ * &lt;transport&gt;http2&lt;/transport&gt;
+ * &lt;http2&gt;
+ *   &lt;ioThreads&gt;1&lt;/ioThreads&gt;        I/O dispatch threads
+ *   &lt;idleTimeout&gt;30&lt;/idleTimeout&gt;   seconds before an idle connection is closed
+ * &lt;/http2&gt;
+ * </pre>
+ * The server has to negotiate h2 by ALPN, which Java 8 supports since update 252.
+ */
+public class Http2Client implements HandleTransport {
+
+    private static final Logger logger = LoggerFactory.getLogger(Http2Client.class.getName());
+
+    public static final int DEFAULT_IO_THREADS = 1;
+    public static final int DEFAULT_IDLE_TIMEOUT = 30;
+
+    private static final ProtocolVersion HTTP_2 = new ProtocolVersion("HTTP", 2, 0);
+
+    private final HandleCredentials credentials;
+    private final CloseableHttpAsyncClient client;
+
+    /**
+     * A client for Handle v8, which authenticates with the (reloadable) client certificate.
+     */
+    public Http2Client(Configuration config, HandleCredentials credentials) {
+        this.credentials = credentials;
+
+        int ioThreads = config.getInt("http2.ioThreads", DEFAULT_IO_THREADS);
+        int idleTimeout = config.getInt("http2.idleTimeout", DEFAULT_IDLE_TIMEOUT);
+
+        this.client = HttpAsyncClients.customHttp2()
+            .setTlsStrategy(new Tls())
+            .setH2Config(H2Config.custom().setPushEnabled(false).build())
+            .setIOReactorConfig(IOReactorConfig.custom().setIoThreadCount(ioThreads).build())
+            .evictIdleConnections(TimeValue.ofSeconds(idleTimeout))
+            .disableRedirectHandling()
+            .disableAutomaticRetries()
+            .disableCookieManagement()
+            .build();
+        this.client.start();
+
+        logger.debug("Http2Client [ioThreads="+ioThreads+"][idleTimeout="+idleTimeout+"s]");
+    }
+
+    @Override
+    public CloseableHttpResponse execute(HttpUriRequest request) throws IOException {
+        try {
+            return send(request).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for "+request.getMethod()+" "+request.getURI());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    @Override
+    public CompletableFuture<HttpResponse> executeAsync(HttpUriRequest request) {
+        return send(request).thenApply(response -> response);
+    }
+
+    /*
+    the response is complete, i.e., its entity (if any) is buffered
+    */
+    private CompletableFuture<CloseableHttpResponse> send(HttpUriRequest request) {
+        final CompletableFuture<CloseableHttpResponse> future = new CompletableFuture<>();
+        SimpleHttpRequest req;
+        try {
+            req = toRequest(request);
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        final Future<SimpleHttpResponse> exchange = this.client.execute(req, new FutureCallback<SimpleHttpResponse>() {
+            @Override
+            public void completed(SimpleHttpResponse response) {
+                future.complete(toResponse(response));
+            }
+
+            @Override
+            public void failed(Exception e) {
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void cancelled() {
+                future.cancel(false);
+            }
+        });
+        // cancelling the future resets the stream
+        future.whenComplete((CloseableHttpResponse response, Throwable t) -> {
+            if (future.isCancelled())
+                exchange.cancel(true);
+        });
+        return future;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.client.close(CloseMode.GRACEFUL);
+    }
+
+    private static SimpleHttpRequest toRequest(HttpUriRequest request) throws IOException {
+        SimpleHttpRequest req = SimpleHttpRequest.create(request.getMethod(), request.getURI());
+        for (Header header : request.getAllHeaders()) {
+            String name = header.getName();
+            // connection specific headers aren't allowed in HTTP/2, the content type goes with the body
+            if (!name.equalsIgnoreCase("Host") && !name.equalsIgnoreCase("Connection") && !name.equalsIgnoreCase("Content-Length") && !name.equalsIgnoreCase("Transfer-Encoding") && !name.equalsIgnoreCase("Content-Type"))
+                req.addHeader(name, header.getValue());
+        }
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null) {
+                Header type = entity.getContentType();
+                req.setBody(EntityUtils.toByteArray(entity), type != null ? org.apache.hc.core5.http.ContentType.parse(type.getValue()) : null);
+            }
+        }
+        return req;
+    }
+
+    private static CloseableHttpResponse toResponse(SimpleHttpResponse response) {
+        BufferedHttpResponse res = new BufferedHttpResponse(HTTP_2, response.getCode());
+        for (org.apache.hc.core5.http.Header header : response.getHeaders())
+            res.addHeader(header.getName(), header.getValue());
+        byte[] body = response.getBodyBytes();
+        if (body != null) {
+            org.apache.hc.core5.http.ContentType type = response.getContentType();
+            res.setEntity(new ByteArrayEntity(body, type != null ? ContentType.parse(type.toString()) : null));
+        }
+        return res;
+    }
+
+    /*
+    TLS with the current SSLContext, so reloaded credentials are used for new connections; offers h2 by ALPN
+    */
+    private class Tls implements TlsStrategy {
+
+        private SSLContext context = null;
+        private TlsStrategy strategy = null;
+
+        private synchronized TlsStrategy getStrategy() {
+            SSLContext current;
+            try {
+                current = credentials.getSSLContext();
+            } catch (Exception e) {
+                logger.error("Problem configurating connection",e);
+                throw new IllegalStateException("Problem configurating connection", e);
+            }
+            if (this.strategy == null || this.context != current) {
+                this.context = current;
+                this.strategy = new DefaultClientTlsStrategy(current, h2Protocols(current), h2Ciphers(current), SSLBufferMode.STATIC, HttpsSupport.getDefaultHostnameVerifier());
+            }
+            return this.strategy;
+        }
+
+        /*
+        HTTP/2 needs TLS 1.2 or later and its AEAD cipher suites, which the TLSv1 context of the credentials supports but doesn't enable by default
+        */
+        private String[] h2Protocols(SSLContext context) {
+            List<String> protocols = new ArrayList<>();
+            for (String protocol : context.getSupportedSSLParameters().getProtocols()) {
+                if (protocol.equals("TLSv1.2") || protocol.equals("TLSv1.3"))
+                    protocols.add(protocol);
+            }
+            return protocols.toArray(new String[protocols.size()]);
+        }
+
+        private String[] h2Ciphers(SSLContext context) {
+            List<String> ciphers = new ArrayList<>();
+            for (String cipher : TlsCiphers.excludeWeak(TlsCiphers.excludeH2Blacklisted(context.getSupportedSSLParameters().getCipherSuites()))) {
+                if (!cipher.contains("_anon_"))
+                    ciphers.add(cipher);
+            }
+            return ciphers.toArray(new String[ciphers.size()]);
+        }
+
+        @Override
+        public boolean upgrade(TransportSecurityLayer session, HttpHost host, SocketAddress localAddress, SocketAddress remoteAddress, Object attachment, Timeout handshakeTimeout) {
+            return getStrategy().upgrade(session, host, localAddress, remoteAddress, attachment, handshakeTimeout);
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package nl.knaw.meertens.pid;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Single-pass pull parser for JSON, so a response can be read straight from
+ * the connection, picking the fields that are needed and skipping the rest
+ * without building a tree or copying substrings.
+ *
+ * The calls follow the structure of the document, e.g.,
+ * <pre>
+ * json.beginObject();
+ * while (json.hasNext()) {
+ *     if (json.nextName().equals("values"))
+ *         ...
+ *     else
+ *         json.skipValue();
+ * }
+ * json.endObject();
+ * </pre>
+ * Errors are reported as an IOException mentioning the character offset.
+ */
+public class JsonReader implements Closeable {
+
+    public enum Token { BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT }
+
+    // what comes next in each nesting level
+    private static final int EMPTY_ARRAY = 1;
+    private static final int NONEMPTY_ARRAY = 2;
+    private static final int EMPTY_OBJECT = 3;
+    private static final int NONEMPTY_OBJECT = 4;
+    private static final int DANGLING_NAME = 5;
+    private static final int EMPTY_DOCUMENT = 6;
+    private static final int NONEMPTY_DOCUMENT = 7;
+
+    private final Reader reader;
+    private final char[] buffer = new char[8192];
+    private int pos = 0;
+    private int limit = 0;
+    private long offset = 0L;
+
+    private int[] stack = new int[32];
+    private int depth = 0;
+    private Token peeked = null;
+    private final StringBuilder string = new StringBuilder();
+
+    public JsonReader(Reader reader) {
+        this.reader = reader;
+        push(EMPTY_DOCUMENT);
+    }
+
+    public JsonReader(InputStream stream) {
+        this(new InputStreamReader(stream, StandardCharsets.UTF_8));
+    }
+
+    private void push(int scope) {
+        if (this.depth == this.stack.length) {
+            int[] stack = new int[this.depth * 2];
+            System.arraycopy(this.stack, 0, stack, 0, this.depth);
+            this.stack = stack;
+        }
+        this.stack[this.depth++] = scope;
+    }
+
+    private IOException error(String message) {
+        return new IOException("JSON["+(this.offset + this.pos)+"] "+message);
+    }
+
+    private int read() throws IOException {
+        if (this.pos == this.limit) {
+            this.offset += this.limit;
+            this.pos = 0;
+            this.limit = Math.max(0, this.reader.read(this.buffer));
+            if (this.limit == 0)
+                return -1;
+        }
+        return this.buffer[this.pos++];
+    }
+
+    private int readNonWhitespace() throws IOException {
+        while (true) {
+            int c = read();
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r')
+                return c;
+        }
+    }
+
+    /**
+     * The kind of the next token, without consuming it.
+     */
+    public Token peek() throws IOException {
+        if (this.peeked != null)
+            return this.peeked;
+        int c;
+        switch (this.stack[this.depth - 1]) {
+            case EMPTY_ARRAY:
+                this.stack[this.depth - 1] = NONEMPTY_ARRAY;
+                c = readNonWhitespace();
+                if (c == ']')
+                    return this.peeked = Token.END_ARRAY;
+                if (c == -1)
+                    throw error("unexpected end of the document");
+                this.pos--;
+                break;
+            case NONEMPTY_ARRAY:
+                c = readNonWhitespace();
+                if (c == ']')
+                    return this.peeked = Token.END_ARRAY;
+                if (c != ',')
+                    throw error("expected , or ] in array");
+                break;
+            case EMPTY_OBJECT:
+            case NONEMPTY_OBJECT:
+                c = readNonWhitespace();
+                if (c == '}')
+                    return this.peeked = Token.END_OBJECT;
+                if (this.stack[this.depth - 1] == NONEMPTY_OBJECT) {
+                    if (c != ',')
+                        throw error("expected , or } in object");
+                    c = readNonWhitespace();
+                }
+                if (c != '"')
+                    throw error("expected a name in object");
+                this.stack[this.depth - 1] = DANGLING_NAME;
+                return this.peeked = Token.NAME;
+            case DANGLING_NAME:
+                if (readNonWhitespace() != ':')
+                    throw error("expected : after name");
+                this.stack[this.depth - 1] = NONEMPTY_OBJECT;
+                break;
+            case EMPTY_DOCUMENT:
+                this.stack[this.depth - 1] = NONEMPTY_DOCUMENT;
+                break;
+            default:
+                if (readNonWhitespace() != -1)
+                    throw error("expected the end of the document");
+                return this.peeked = Token.END_DOCUMENT;
+        }
+        c = readNonWhitespace();
+        switch (c) {
+            case '{':
+                return this.peeked = Token.BEGIN_OBJECT;
+            case '[':
+                return this.peeked = Token.BEGIN_ARRAY;
+            case '"':
+                return this.peeked = Token.STRING;
+            case 't':
+            case 'f':
+                readLiteral(c);
+                if (!literal("true") && !literal("false"))
+                    throw error("invalid literal["+this.string+"]");
+                return this.peeked = Token.BOOLEAN;
+            case 'n':
+                readLiteral(c);
+                if (!literal("null"))
+                    throw error("invalid literal["+this.string+"]");
+                return this.peeked = Token.NULL;
+            case -1:
+                throw error("unexpected end of the document");
+            default:
+                if (c != '-' && (c < '0' || c > '9'))
+                    throw error("unexpected character["+(char)c+"]");
+                readLiteral(c);
+                return this.peeked = Token.NUMBER;
+        }
+    }
+
+    private void readLiteral(int c) throws IOException {
+        this.string.setLength(0);
+        while (true) {
+            this.string.append((char) c);
+            c = read();
+            boolean part = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.';
+            if (!part) {
+                if (c != -1)
+                    this.pos--;
+                return;
+            }
+        }
+    }
+
+    private boolean literal(String expected) {
+        return this.string.length() == expected.length() && this.string.indexOf(expected) == 0;
+    }
+
+    /*
+    read the rest of a string, after its opening quote; appended to the builder if keep
+    */
+    private void readString(boolean keep) throws IOException {
+        this.string.setLength(0);
+        while (true) {
+            int start = this.pos;
+            while (this.pos < this.limit) {
+                char c = this.buffer[this.pos++];
+                if (c == '"') {
+                    if (keep)
+                        this.string.append(this.buffer, start, this.pos - 1 - start);
+                    return;
+                }
+                if (c == '\\') {
+                    if (keep)
+                        this.string.append(this.buffer, start, this.pos - 1 - start);
+                    char e = readEscape();
+                    if (keep)
+                        this.string.append(e);
+                    start = this.pos;
+                } else if (c < 0x20) {
+                    throw error("control character in string");
+                }
+            }
+            if (keep)
+                this.string.append(this.buffer, start, this.pos - start);
+            if (read() == -1)
+                throw error("unterminated string");
+            this.pos--;
+        }
+    }
+
+    private char readEscape() throws IOException {
+        int c = read();
+        switch (c) {
+            case '"': return '"';
+            case '\\': return '\\';
+            case '/': return '/';
+            case 'b': return '\b';
+            case 'f': return '\f';
+            case 'n': return '\n';
+            case 'r': return '\r';
+            case 't': return '\t';
+            case 'u':
+                int u = 0;
+                for (int i = 0; i < 4; i++) {
+                    int d = Character.digit(read(), 16);
+                    if (d < 0)
+                        throw error("invalid unicode escape");
+                    u = (u << 4) | d;
+                }
+                return (char) u;
+            default:
+                throw error("invalid escape");
+        }
+    }
+
+    private void expect(Token expected) throws IOException {
+        Token token = peek();
+        if (token != expected)
+            throw error("expected "+expected+" but found "+token);
+        this.peeked = null;
+    }
+
+    public void beginObject() throws IOException {
+        expect(Token.BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+    public void endObject() throws IOException {
+        expect(Token.END_OBJECT);
+        this.depth--;
+    }
+
+    public void beginArray() throws IOException {
+        expect(Token.BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+    public void endArray() throws IOException {
+        expect(Token.END_ARRAY);
+        this.depth--;
+    }
+
+    /**
+     * Is there another element in the current array or member in the current object?
+     */
+    public boolean hasNext() throws IOException {
+        Token token = peek();
+        return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+    }
+
+    public String nextName() throws IOException {
+        expect(Token.NAME);
+        readString(true);
+        return this.string.toString();
+    }
+
+    /**
+     * The next string, or the text of the next number or boolean.
+     */
+    public String nextString() throws IOException {
+        Token token = peek();
+        if (token == Token.STRING)
+            readString(true);
+        else if (token != Token.NUMBER && token != Token.BOOLEAN)
+            throw error("expected a STRING but found "+token);
+        this.peeked = null;
+        return this.string.toString();
+    }
+
+    /**
+     * The next number, or string containing a number.
+     */
+    public long nextLong() throws IOException {
+        String value = nextString();
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            try {
+                return (long) Double.parseDouble(value);
+            } catch (NumberFormatException f) {
+                throw error("expected a number but found["+value+"]");
+            }
+        }
+    }
+
+    public void nextNull() throws IOException {
+        expect(Token.NULL);
+    }
+
+    /**
+     * Skip the next value, including everything nested in it.
+     */
+    public void skipValue() throws IOException {
+        int nesting = 0;
+        do {
+            switch (peek()) {
+                case BEGIN_OBJECT:
+                    beginObject();
+                    nesting++;
+                    break;
+                case BEGIN_ARRAY:
+                    beginArray();
+                    nesting++;
+                    break;
+                case END_OBJECT:
+                    endObject();
+                    nesting--;
+                    break;
+                case END_ARRAY:
+                    endArray();
+                    nesting--;
+                    break;
+                case NAME:
+                case STRING:
+                    this.peeked = null;
+                    readString(false);
+                    break;
+                case END_DOCUMENT:
+                    throw error("unexpected end of the document");
+                default:
+                    this.peeked = null;
+            }
+        } while (nesting > 0);
+    }
+
+    /**
+     * Skip members of the current object up to the one with this name, which is
+     * then next; returns false, at the end of the object, if there is none.
+     */
+    public boolean findName(String name) throws IOException {
+        while (hasNext()) {
+            if (nextName().equals(name))
+                return true;
+            skipValue();
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.reader.close();
+    }
+}
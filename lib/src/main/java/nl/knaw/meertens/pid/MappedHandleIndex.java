@@ -0,0 +1,293 @@
+package nl.knaw.meertens.pid;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link HandleIndex} in a memory-mapped file, so the index of a prefix with
+ * millions of handles costs hardly any heap, and is opened in milliseconds
+ * and kept up to date on disk by the OS.
+ *
+ * The file is an open-addressing hash table with linear probing:
+ * <pre>
+ * header (64 bytes): magic "EPICIDX1", format version (int), flags (int),
+ *                    capacity (long), size (long), reserved
+ * slots (capacity x 16 bytes): 64-bit hash of the suffix, 0 if the slot is
+ *                              empty, and the fingerprint of the location
+ * </pre>
+ * The table doubles, into a new file that replaces the old one, when it's
+ * more than {@link #MAX_LOAD} full. Suffixes are only stored by their hash,
+ * so two suffixes colliding in 64 bits (a chance of about 1 in 10^5 for 20
+ * million suffixes) share an entry; at worst one row isn't written.
+ *
+ * A slot's fingerprint is written before its hash, so a crash leaves at worst
+ * an entry with an unknown location; the size is recounted when the file
+ * wasn't closed cleanly.
+ */
+public class MappedHandleIndex implements HandleIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(MappedHandleIndex.class.getName());
+
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+    public static final double MAX_LOAD = 0.7;
+    // a MappedByteBuffer can't exceed 2GB
+    public static final int MAX_CAPACITY = 1 << 26;
+
+    private static final long MAGIC = 0x45504943_49445831L; // EPICIDX1
+    private static final int FORMAT = 1;
+    private static final int DIRTY = 1;
+    private static final int HEADER = 64;
+    private static final int SLOT = 16;
+
+    private static final int FLAGS_OFFSET = 12;
+    private static final int CAPACITY_OFFSET = 16;
+    private static final int SIZE_OFFSET = 24;
+
+    private final File file;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int mask;
+    private int size;
+    private boolean dirty = false;
+
+    /**
+     * Open the index file, or create an empty one.
+     */
+    public MappedHandleIndex(File file) throws IOException {
+        this(file, 0);
+    }
+
+    /**
+     * Open the index file, or create an empty one sized for the expected number of suffixes.
+     */
+    public MappedHandleIndex(File file, int expected) throws IOException {
+        this.file = file;
+        if (file.exists() && file.length() > 0) {
+            open();
+        } else {
+            create(file, capacityFor(expected));
+            open();
+        }
+    }
+
+    private static int capacityFor(int expected) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity < MAX_CAPACITY && expected > capacity * MAX_LOAD)
+            capacity <<= 1;
+        return capacity;
+    }
+
+    private static void create(File file, int capacity) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0L);
+            raf.setLength(HEADER + (long) capacity * SLOT);
+            raf.writeLong(MAGIC);
+            raf.writeInt(FORMAT);
+            raf.writeInt(0);
+            raf.writeLong(capacity);
+            raf.writeLong(0L);
+        }
+    }
+
+    private void open() throws IOException {
+        this.channel = new RandomAccessFile(this.file, "rw").getChannel();
+        try {
+            if (this.channel.size() < HEADER)
+                throw new IOException("Index["+this.file+"] is too short");
+            this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, this.channel.size());
+            if (this.buffer.getLong(0) != MAGIC || this.buffer.getInt(8) != FORMAT)
+                throw new IOException("Index["+this.file+"] isn't an index file (of this version)");
+            long capacity = this.buffer.getLong(CAPACITY_OFFSET);
+            if (capacity <= 0 || capacity > MAX_CAPACITY || Long.bitCount(capacity) != 1 || this.channel.size() < HEADER + capacity * SLOT)
+                throw new IOException("Index["+this.file+"] has an invalid capacity["+capacity+"]");
+            this.capacity = (int) capacity;
+            this.mask = this.capacity - 1;
+            if ((this.buffer.getInt(FLAGS_OFFSET) & DIRTY) != 0) {
+                logger.warn("Index["+this.file+"] wasn't closed cleanly, recounting");
+                this.size = count();
+                this.buffer.putLong(SIZE_OFFSET, this.size);
+            } else {
+                this.size = (int) this.buffer.getLong(SIZE_OFFSET);
+            }
+        } catch (IOException e) {
+            this.channel.close();
+            throw e;
+        }
+        logger.debug("Index["+this.file+"] opened with "+this.size+" handles[capacity="+this.capacity+"]");
+    }
+
+    private int count() {
+        int n = 0;
+        for (int i = 0; i < this.capacity; i++) {
+            if (key(i) != 0L)
+                n++;
+        }
+        return n;
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+
+    private static int offset(int slot) {
+        return HEADER + slot * SLOT;
+    }
+
+    private long key(int slot) {
+        return this.buffer.getLong(offset(slot));
+    }
+
+    private long value(int slot) {
+        return this.buffer.getLong(offset(slot) + 8);
+    }
+
+    private void set(int slot, long key, long value) {
+        int offset = offset(slot);
+        this.buffer.putLong(offset + 8, value);
+        this.buffer.putLong(offset, key);
+    }
+
+    /*
+    the slot of the key, or -(insertion point)-1 if it isn't there
+    */
+    private int find(long key) {
+        int slot = (int) key & this.mask;
+        while (true) {
+            long k = key(slot);
+            if (k == 0L)
+                return -slot - 1;
+            if (k == key)
+                return slot;
+            slot = (slot + 1) & this.mask;
+        }
+    }
+
+    private void modified() {
+        if (!this.dirty) {
+            this.dirty = true;
+            this.buffer.putInt(FLAGS_OFFSET, this.buffer.getInt(FLAGS_OFFSET) | DIRTY);
+        }
+    }
+
+    @Override
+    public synchronized boolean contains(String suffix) {
+        return find(HandleIndex.fingerprint(suffix)) >= 0;
+    }
+
+    @Override
+    public synchronized long get(String suffix) {
+        int slot = find(HandleIndex.fingerprint(suffix));
+        return slot >= 0 ? value(slot) : UNKNOWN;
+    }
+
+    @Override
+    public synchronized void put(String suffix, long fingerprint) {
+        long key = HandleIndex.fingerprint(suffix);
+        int slot = find(key);
+        modified();
+        if (slot >= 0) {
+            this.buffer.putLong(offset(slot) + 8, fingerprint);
+            return;
+        }
+        if (this.size + 1 > this.capacity * MAX_LOAD) {
+            grow();
+            slot = find(key);
+        }
+        set(-slot - 1, key, fingerprint);
+        this.buffer.putLong(SIZE_OFFSET, ++this.size);
+    }
+
+    @Override
+    public synchronized boolean remove(String suffix) {
+        int slot = find(HandleIndex.fingerprint(suffix));
+        if (slot < 0)
+            return false;
+        modified();
+        // shift the following entries of the probe sequence back, so no tombstones are needed
+        int next = slot;
+        while (true) {
+            next = (next + 1) & this.mask;
+            long k = key(next);
+            if (k == 0L)
+                break;
+            int home = (int) k & this.mask;
+            boolean between = slot <= next ? (slot < home && home <= next) : (slot < home || home <= next);
+            if (!between) {
+                set(slot, k, value(next));
+                slot = next;
+            }
+        }
+        this.buffer.putLong(offset(slot), 0L);
+        this.buffer.putLong(offset(slot) + 8, 0L);
+        this.buffer.putLong(SIZE_OFFSET, --this.size);
+        return true;
+    }
+
+    @Override
+    public synchronized int size() {
+        return this.size;
+    }
+
+    /*
+    rehash into a file of twice the capacity, which then replaces this one
+    */
+    private void grow() {
+        if (this.capacity >= MAX_CAPACITY)
+            throw new IllegalStateException("Index["+this.file+"] is full["+this.size+"]");
+        File grown = new File(this.file.getPath() + ".grow");
+        try {
+            create(grown, this.capacity << 1);
+            try (MappedHandleIndex bigger = new MappedHandleIndex(grown)) {
+                for (int i = 0; i < this.capacity; i++) {
+                    long k = key(i);
+                    if (k != 0L) {
+                        int slot = bigger.find(k);
+                        bigger.set(-slot - 1, k, value(i));
+                        bigger.size++;
+                    }
+                }
+                bigger.buffer.putLong(SIZE_OFFSET, bigger.size);
+            }
+            this.buffer.force();
+            this.channel.close();
+            Files.move(grown.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            this.dirty = false;
+            open();
+            modified();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Index["+this.file+"] couldn't grow", e);
+        }
+        logger.debug("Index["+this.file+"] grown to capacity["+this.capacity+"]");
+    }
+
+    /**
+     * Write the changes to disk.
+     */
+    public synchronized void flush() {
+        this.buffer.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!this.channel.isOpen())
+            return;
+        if (this.dirty) {
+            this.buffer.force();
+            this.buffer.putInt(FLAGS_OFFSET, this.buffer.getInt(FLAGS_OFFSET) & ~DIRTY);
+            this.dirty = false;
+        }
+        this.buffer.force();
+        // the mapping itself is only released when the buffer is garbage collected
+        this.channel.close();
+    }
+}
@@ -0,0 +1,343 @@
+package nl.knaw.meertens.pid;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A PID server in memory: the requests of a PIDService are answered as the
+ * Handle v8 or EPIC v2 server would, without any network, from handles kept in
+ * this transport. It's meant for tests and demos, and enabled by the
+ * PIDService configuration
+ * <pre>
+ * &lt;transport&gt;memory&lt;/transport&gt;
+ * </pre>
+ * Credentials aren't checked, and the handles are gone when the PIDService is
+ * closed.
+ */
+public class MemoryHandleTransport implements HandleTransport {
+
+    private static final Logger logger = LoggerFactory.getLogger(MemoryHandleTransport.class.getName());
+
+    private static final long DEFAULT_TTL = 86400L;
+
+    private final boolean v8;
+    private final String base;
+    private final ConcurrentNavigableMap<String, HandleRecord> handles = new ConcurrentSkipListMap<>();
+
+    /**
+     * A server for the API version, "8" or "2", with its handles under the
+     * path of the host URI, e.g., https://host/api/handles/.
+     */
+    public MemoryHandleTransport(String version, String host) {
+        this.v8 = version.equals("8");
+        String path = URI.create(host).getPath();
+        this.base = path.endsWith("/") ? path : path + "/";
+        logger.debug("MemoryHandleTransport ["+version+"]["+this.base+"]");
+    }
+
+    /**
+     * The record of the handle (prefix/suffix), or null if it doesn't exist.
+     */
+    public HandleRecord getHandle(String handle) {
+        return this.handles.get(handle);
+    }
+
+    /**
+     * Store the record, replacing the handle if it exists.
+     */
+    public void putHandle(HandleRecord record) {
+        this.handles.put(record.getHandle(), record);
+    }
+
+    public int size() {
+        return this.handles.size();
+    }
+
+    public void clear() {
+        this.handles.clear();
+    }
+
+    @Override
+    public CloseableHttpResponse execute(HttpUriRequest request) throws IOException {
+        byte[] body = null;
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null)
+                body = EntityUtils.toByteArray(entity);
+        }
+        return serve(request.getMethod(), request.getURI(), body);
+    }
+
+    @Override
+    public CompletableFuture<HttpResponse> executeAsync(HttpUriRequest request) {
+        CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+        try {
+            future.complete(execute(request));
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    @Override
+    public void close() {
+        this.handles.clear();
+    }
+
+    /*
+    answer a request for the path and query of the URI
+    */
+    BufferedHttpResponse serve(String method, URI uri, byte[] body) throws IOException {
+        String path = uri.getPath();
+        Map<String, String> params = new TreeMap<>();
+        for (NameValuePair param : URLEncodedUtils.parse(uri, StandardCharsets.UTF_8))
+            params.put(param.getName(), param.getValue());
+        if (this.v8 && (path + "/").equals(this.base) && method.equals("GET"))
+            return list(params.get("prefix"), params.get("page"), params.get("pageSize"));
+        if (!path.startsWith(this.base) || path.length() == this.base.length())
+            return response(HttpStatus.SC_NOT_FOUND, null);
+        String handle = path.substring(this.base.length());
+        if (!this.v8 && handle.endsWith("/") && method.equals("GET"))
+            return list(handle.substring(0, handle.length() - 1), null, null);
+        switch (method) {
+            case "GET":
+                return get(handle);
+            case "PUT":
+                if (body == null)
+                    return response(HttpStatus.SC_BAD_REQUEST, null);
+                return put(handle, body, params.get("index"), !"false".equals(params.get("overwrite")));
+            case "DELETE":
+                return delete(handle);
+            default:
+                return response(HttpStatus.SC_METHOD_NOT_ALLOWED, null);
+        }
+    }
+
+    private BufferedHttpResponse get(String handle) throws IOException {
+        HandleRecord record = this.handles.get(handle);
+        if (record == null)
+            return notFound(handle);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (this.v8) {
+            write(out, "{\"responseCode\":1,\"handle\":");
+            quote(out, handle);
+            write(out, ",\"values\":[");
+        } else {
+            write(out, "[");
+        }
+        boolean first = true;
+        for (HandleRecord.Value value : record.getValues()) {
+            if (!first)
+                write(out, ",");
+            first = false;
+            if (this.v8)
+                writeHandleValue(out, value);
+            else
+                writeEpicValue(out, value);
+        }
+        write(out, this.v8 ? "]}" : "]");
+        return response(HttpStatus.SC_OK, out.toByteArray());
+    }
+
+    private BufferedHttpResponse put(String handle, byte[] body, String index, boolean overwrite) throws IOException {
+        JsonReader json = new JsonReader(new ByteArrayInputStream(body));
+        HandleRecord record = this.v8 ? HandleRecord.parseHandle(json, handle) : HandleRecord.parseEpic(json, handle);
+        List<HandleRecord.Value> values = stamped(record.getValues());
+        if (index != null) {
+            // only replace the values with these indices; like the Handle server, a handle that doesn't exist is created with just these values
+            final boolean[] existed = new boolean[1];
+            this.handles.compute(handle, (String key, HandleRecord current) -> {
+                Map<Integer, HandleRecord.Value> merged = new TreeMap<>();
+                existed[0] = current != null;
+                if (current != null) {
+                    for (HandleRecord.Value value : current.getValues())
+                        merged.put(value.getIndex(), value);
+                }
+                for (HandleRecord.Value value : values)
+                    merged.put(value.getIndex(), value);
+                return new HandleRecord(key, new ArrayList<>(merged.values()));
+            });
+            return handleResponse(existed[0] ? HttpStatus.SC_OK : HttpStatus.SC_CREATED, handle);
+        }
+        HandleRecord created = new HandleRecord(handle, values);
+        HandleRecord old = overwrite ? this.handles.put(handle, created) : this.handles.putIfAbsent(handle, created);
+        if (old != null && !overwrite)
+            return this.v8 ? handleResponse(HttpStatus.SC_CONFLICT, handle, 101) : response(HttpStatus.SC_CONFLICT, null);
+        if (old == null)
+            return this.v8 ? handleResponse(HttpStatus.SC_CREATED, handle) : response(HttpStatus.SC_CREATED, null);
+        return this.v8 ? handleResponse(HttpStatus.SC_OK, handle) : response(HttpStatus.SC_NO_CONTENT, null);
+    }
+
+    private BufferedHttpResponse delete(String handle) throws IOException {
+        if (this.handles.remove(handle) == null)
+            return notFound(handle);
+        return this.v8 ? handleResponse(HttpStatus.SC_OK, handle) : response(HttpStatus.SC_NO_CONTENT, null);
+    }
+
+    /*
+    the handles under the prefix, a page of full handles for v8 and all suffixes for v2
+    */
+    private BufferedHttpResponse list(String prefix, String page, String pageSize) throws IOException {
+        if (prefix == null)
+            return response(HttpStatus.SC_BAD_REQUEST, null);
+        String from = prefix + "/";
+        int skip = 0;
+        int max = Integer.MAX_VALUE;
+        if (page != null && pageSize != null) {
+            max = Integer.parseInt(pageSize);
+            skip = Integer.parseInt(page) * max;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out, this.v8 ? "{\"responseCode\":1,\"prefix\":" : "[");
+        if (this.v8) {
+            quote(out, prefix);
+            write(out, ",\"handles\":[");
+        }
+        int n = 0;
+        for (String handle : this.handles.subMap(from, from + Character.MAX_VALUE).keySet()) {
+            if (skip > 0) {
+                skip--;
+                continue;
+            }
+            if (n == max)
+                break;
+            if (n++ > 0)
+                write(out, ",");
+            quote(out, this.v8 ? handle : handle.substring(from.length()));
+        }
+        write(out, this.v8 ? "]}" : "]");
+        return response(HttpStatus.SC_OK, out.toByteArray());
+    }
+
+    /*
+    the values as the server keeps them, with a TTL and a timestamp
+    */
+    private static List<HandleRecord.Value> stamped(List<HandleRecord.Value> values) {
+        String now = Instant.now().toString();
+        List<HandleRecord.Value> stamped = new ArrayList<>(values.size());
+        for (HandleRecord.Value value : values)
+            stamped.add(new HandleRecord.Value(value.getIndex(), value.getType(), value.getFormat(), value.getData(), value.getTtl() < 0 ? DEFAULT_TTL : value.getTtl(), value.getTimestamp() != null ? value.getTimestamp() : now));
+        return stamped;
+    }
+
+    private BufferedHttpResponse notFound(String handle) throws IOException {
+        return this.v8 ? handleResponse(HttpStatus.SC_NOT_FOUND, handle, 100) : response(HttpStatus.SC_NOT_FOUND, null);
+    }
+
+    private static BufferedHttpResponse handleResponse(int status, String handle) throws IOException {
+        return handleResponse(status, handle, 1);
+    }
+
+    /*
+    a Handle v8 response without values, e.g., {"responseCode":100,"handle":...} for a handle that isn't found
+    */
+    private static BufferedHttpResponse handleResponse(int status, String handle, int responseCode) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out, "{\"responseCode\":" + responseCode + ",\"handle\":");
+        quote(out, handle);
+        write(out, "}");
+        return response(status, out.toByteArray());
+    }
+
+    private static BufferedHttpResponse response(int status, byte[] body) {
+        BufferedHttpResponse response = new BufferedHttpResponse(HttpVersion.HTTP_1_1, status);
+        if (body != null)
+            response.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_JSON));
+        return response;
+    }
+
+    private static void writeHandleValue(ByteArrayOutputStream out, HandleRecord.Value value) throws IOException {
+        write(out, "{\"index\":" + value.getIndex() + ",\"type\":");
+        quote(out, value.getType());
+        write(out, ",\"data\":{\"format\":");
+        quote(out, value.getFormat() != null ? value.getFormat() : "string");
+        write(out, ",\"value\":");
+        data(out, value);
+        write(out, "},\"ttl\":" + value.getTtl() + ",\"timestamp\":");
+        quote(out, value.getTimestamp());
+        write(out, "}");
+    }
+
+    private static void writeEpicValue(ByteArrayOutputStream out, HandleRecord.Value value) throws IOException {
+        write(out, "{\"idx\":" + value.getIndex() + ",\"type\":");
+        quote(out, value.getType());
+        write(out, ",\"parsed_data\":");
+        data(out, value);
+        write(out, ",\"ttl\":" + value.getTtl() + ",\"timestamp\":");
+        quote(out, value.getTimestamp());
+        write(out, "}");
+    }
+
+    /*
+    the data of a value, as the JSON it was read as if it's an object or array (e.g., of an HS_ADMIN value), otherwise as a string, even if it looks like JSON
+    */
+    private static void data(ByteArrayOutputStream out, HandleRecord.Value value) throws IOException {
+        if (value.getData() != null && isStructured(value))
+            write(out, value.getData());
+        else
+            quote(out, value.getData());
+    }
+
+    /*
+    whether the format of the value, or its type if there's no format (EPIC v2), has an object or array as data
+    */
+    private static boolean isStructured(HandleRecord.Value value) {
+        String kind = value.getFormat() != null ? value.getFormat() : value.getType();
+        if (kind == null)
+            return false;
+        switch (kind.toLowerCase(Locale.ROOT)) {
+            case "admin":
+            case "vlist":
+            case "site":
+            case "hs_admin":
+            case "hs_vlist":
+            case "hs_site":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void quote(ByteArrayOutputStream out, String s) throws IOException {
+        if (s == null) {
+            write(out, "null");
+            return;
+        }
+        out.write('"');
+        HandlePayload.writeEscaped(out, s, new byte[256]);
+        out.write('"');
+    }
+
+    private static void write(ByteArrayOutputStream out, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,86 @@
+package nl.knaw.meertens.pid;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Records the metrics of a PIDService in a Micrometer registry:
+ * <ul>
+ * <li>{@code epicify.requests}: a timer of the requests to the PID server, tagged by
+ *     operation, version and status ({@code IO_ERROR} if there's no response),
+ *     with a percentile histogram</li>
+ * <li>{@code epicify.retries}: a counter of the retried requests, tagged by operation and version</li>
+ * <li>{@code epicify.cache}: a counter of the handle cache lookups, tagged by result (hit or miss)</li>
+ * <li>{@code epicify.connect}: a timer of the TLS connects and handshakes of the connection pool</li>
+ * <li>{@code epicify.pool.leased}, {@code epicify.throttle.limit}, ...: gauges of the
+ *     connection pool, the throttle and the cache</li>
+ * </ul>
+ * micrometer-core is an optional dependency of epicify, the application
+ * brings its own.
+ */
+public class MicrometerHandleMetrics implements HandleMetrics {
+
+    public static final String PREFIX = "epicify.";
+
+    private final MeterRegistry registry;
+    private final ConcurrentMap<String, Timer> requests = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Counter> retries = new ConcurrentHashMap<>();
+    private final Counter hits;
+    private final Counter misses;
+    private final Timer connects;
+
+    public MicrometerHandleMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.hits = Counter.builder(PREFIX + "cache").tag("result", "hit").register(registry);
+        this.misses = Counter.builder(PREFIX + "cache").tag("result", "miss").register(registry);
+        this.connects = Timer.builder(PREFIX + "connect").register(registry);
+    }
+
+    @Override
+    public void request(String operation, String version, int status, long nanos) {
+        String key = operation + "/" + version + "/" + status;
+        Timer timer = this.requests.get(key);
+        if (timer == null)
+            timer = this.requests.computeIfAbsent(key, (String k) -> Timer.builder(PREFIX + "requests")
+                .tag("operation", operation)
+                .tag("version", version)
+                .tag("status", status < 0 ? "IO_ERROR" : Integer.toString(status))
+                .publishPercentileHistogram()
+                .register(this.registry));
+        timer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void retry(String operation, String version, int attempt) {
+        String key = operation + "/" + version;
+        Counter counter = this.retries.get(key);
+        if (counter == null)
+            counter = this.retries.computeIfAbsent(key, (String k) -> Counter.builder(PREFIX + "retries")
+                .tag("operation", operation)
+                .tag("version", version)
+                .register(this.registry));
+        counter.increment();
+    }
+
+    @Override
+    public void cache(boolean hit) {
+        (hit ? this.hits : this.misses).increment();
+    }
+
+    @Override
+    public void connect(long nanos) {
+        this.connects.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void gauge(String name, final Supplier<Number> value) {
+        Gauge.builder(PREFIX + name, value).register(this.registry);
+    }
+}
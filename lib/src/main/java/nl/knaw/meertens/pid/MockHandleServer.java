@@ -0,0 +1,226 @@
+package nl.knaw.meertens.pid;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.util.EntityUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An embedded HTTP server that answers like the Handle v8 or EPIC v2 server of
+ * a PIDService configuration, from handles kept in memory (a
+ * {@link MemoryHandleTransport}), so the real request and response handling of
+ * a PIDService can be load and latency tested without a PID server.
+ *
+ * It serves the API version of the configuration at the path of its URI, on
+ * plain HTTP, with latency and errors as configured by an optional section:
+ * <pre>
+ * &lt;mock&gt;
+ *   &lt;port&gt;8080&lt;/port&gt;             default the port of the URI
+ *   &lt;latency&gt;20&lt;/latency&gt;         milliseconds before each response
+ *   &lt;jitter&gt;10&lt;/jitter&gt;           up to this many milliseconds more, at random
+ *   &lt;errorRate&gt;0.01&lt;/errorRate&gt;    fraction of requests answered by an error
+ *   &lt;errorStatus&gt;503&lt;/errorStatus&gt;  the status of the injected errors
+ *   &lt;threads&gt;4&lt;/threads&gt;          request handling threads, default the number of CPUs
+ * &lt;/mock&gt;
+ * </pre>
+ * An injected 429 or 503 comes with a Retry-After of 1 second. Credentials
+ * aren't checked, so a Handle v8 configuration pointing to http://... works
+ * without a client certificate.
+ *
+ * For latency tests, start the JVM with {@code -Dsun.net.httpserver.nodelay=true},
+ * or set it before the first server is created; otherwise the JDK server sends
+ * the headers and the body of a response as separate packets, which the
+ * client's delayed ACK holds up for ~40ms.
+ */
+public class MockHandleServer implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(MockHandleServer.class.getName());
+
+    public static final int DEFAULT_ERROR_STATUS = HttpStatus.SC_SERVICE_UNAVAILABLE;
+
+    private final MemoryHandleTransport store;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+    private final String path;
+
+    private volatile long latency;
+    private volatile long jitter;
+    private volatile double errorRate;
+    private volatile int errorStatus;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * A server for the PIDService configuration, listening on the {@code <mock><port>},
+     * or else the port of the URI; it's started right away.
+     */
+    public MockHandleServer(Configuration config) throws IOException {
+        this(config, config.getInt("mock.port", port(config.getString("URI"))));
+    }
+
+    /**
+     * A server for the PIDService configuration listening on the port, 0 for any free port.
+     */
+    public MockHandleServer(Configuration config, int port) throws IOException {
+        String version = config.containsKey("private_key") ? "8" : "2";
+        String host = config.getString("URI");
+        this.store = new MemoryHandleTransport(version, host);
+        this.path = URI.create(host).getPath();
+        this.latency = config.getLong("mock.latency", 0L);
+        this.jitter = config.getLong("mock.jitter", 0L);
+        this.errorRate = config.getDouble("mock.errorRate", 0.0);
+        this.errorStatus = config.getInt("mock.errorStatus", DEFAULT_ERROR_STATUS);
+        int threads = config.getInt("mock.threads", Runtime.getRuntime().availableProcessors());
+
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.server.createContext("/", this::handle);
+        this.server.setExecutor(this.executor);
+        this.server.start();
+
+        logger.info("MockHandleServer ["+version+"] on port["+getPort()+"]["+this.path+"] [latency="+this.latency+"ms][jitter="+this.jitter+"ms][errorRate="+this.errorRate+"][errorStatus="+this.errorStatus+"]");
+    }
+
+    private static int port(String host) {
+        URI uri = URI.create(host);
+        if (uri.getPort() >= 0)
+            return uri.getPort();
+        return "https".equals(uri.getScheme()) ? 443 : 80;
+    }
+
+    /**
+     * The handles served, e.g., to check or seed them in a test.
+     */
+    public MemoryHandleTransport getStore() {
+        return this.store;
+    }
+
+    public int getPort() {
+        return this.server.getAddress().getPort();
+    }
+
+    /**
+     * The URI to configure a PIDService with, e.g., http://localhost:8080/api/handles/
+     */
+    public String getURI() {
+        return "http://localhost:" + getPort() + this.path;
+    }
+
+    public void setLatency(long latency, long jitter) {
+        this.latency = latency;
+        this.jitter = jitter;
+    }
+
+    public void setErrors(double errorRate, int errorStatus) {
+        this.errorRate = errorRate;
+        this.errorStatus = errorStatus;
+    }
+
+    public long getRequestCount() {
+        return this.requests.get();
+    }
+
+    public long getErrorCount() {
+        return this.errors.get();
+    }
+
+    @Override
+    public void close() {
+        this.server.stop(0);
+        this.scheduler.shutdownNow();
+        this.executor.shutdownNow();
+        this.store.close();
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        this.requests.incrementAndGet();
+        final BufferedHttpResponse response;
+        try {
+            if (this.errorRate > 0.0 && ThreadLocalRandom.current().nextDouble() < this.errorRate) {
+                this.errors.incrementAndGet();
+                response = new BufferedHttpResponse(HttpVersion.HTTP_1_1, this.errorStatus);
+                if (this.errorStatus == HttpStatus.SC_SERVICE_UNAVAILABLE || this.errorStatus == 429)
+                    response.setHeader("Retry-After", "1");
+                // read the body anyway, so the connection can be reused
+                readBody(exchange.getRequestBody());
+            } else {
+                response = this.store.serve(exchange.getRequestMethod(), exchange.getRequestURI(), readBody(exchange.getRequestBody()));
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.error("MockHandleServer failed on "+exchange.getRequestMethod()+" "+exchange.getRequestURI(), e);
+            exchange.sendResponseHeaders(HttpStatus.SC_INTERNAL_SERVER_ERROR, -1);
+            exchange.close();
+            return;
+        }
+        long delay = this.latency + (this.jitter > 0 ? ThreadLocalRandom.current().nextLong(this.jitter + 1) : 0L);
+        if (delay <= 0) {
+            send(exchange, response);
+            return;
+        }
+        // the response is sent later, without holding a handling thread
+        this.scheduler.schedule(() -> {
+            try {
+                send(exchange, response);
+            } catch (IOException e) {
+                logger.warn("MockHandleServer couldn't respond to "+exchange.getRequestMethod()+" "+exchange.getRequestURI()+": "+e);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) > 0)
+            out.write(buffer, 0, n);
+        in.close();
+        return out.size() > 0 ? out.toByteArray() : null;
+    }
+
+    private static void send(HttpExchange exchange, BufferedHttpResponse response) throws IOException {
+        try {
+            for (Header header : response.getAllHeaders())
+                exchange.getResponseHeaders().add(header.getName(), header.getValue());
+            HttpEntity entity = response.getEntity();
+            int status = response.getStatusLine().getStatusCode();
+            if (entity == null) {
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            byte[] body = EntityUtils.toByteArray(entity);
+            if (entity.getContentType() != null)
+                exchange.getResponseHeaders().set("Content-Type", entity.getContentType().getValue());
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package nl.knaw.meertens.pid;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.commons.configuration.XMLConfiguration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Dispatches the calls for handles of several prefixes, possibly on several
+ * Handle (or EPIC) servers, to a PIDService per prefix; a handle is given as
+ * prefix/suffix. It's configured by a PIDService configuration per prefix:
+ * <pre>
+ * &lt;PIDRouter&gt;
+ *   &lt;PIDService&gt;
+ *     &lt;URI&gt;https://pid1.example.org:8000/api/handles/&lt;/URI&gt;
+ *     &lt;HandlePrefix&gt;21.T12345&lt;/HandlePrefix&gt;
+ *     ...
+ *   &lt;/PIDService&gt;
+ *   &lt;PIDService&gt;
+ *     ...
+ *   &lt;/PIDService&gt;
+ * &lt;/PIDRouter&gt;
+ * </pre>
+ * The prefixes on the same server, i.e., with the same URI, transport and
+ * Handle v8 client certificate, share one transport (so one connection pool),
+ * one set of credentials, one throttle and one pool of connections to the
+ * {@code <resolve>} mirrors; each server has its own. So the
+ * maxRequestsPerSecond and maxConcurrent of a server are a budget for all its
+ * prefixes together, as configured for the first of them.
+ */
+public class PIDRouter implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PIDRouter.class.getName());
+
+    private final Map<String, PIDService> services = new LinkedHashMap<>();
+    // the PIDService that created the transport, per server
+    private final Map<String, PIDService> servers = new LinkedHashMap<>();
+    // the server, per prefix
+    private final Map<String, String> serverKeys = new LinkedHashMap<>();
+    // the pool of connections to the <resolve> mirrors, per server
+    private final Map<String, HandleTransport> mirrors = new LinkedHashMap<>();
+
+    /**
+     * A router for the {@code <PIDService>} configurations in the configuration.
+     */
+    public static PIDRouter fromConfiguration(XMLConfiguration config, SSLContext ssl) throws ConfigurationException {
+        List<XMLConfiguration> configs = new ArrayList<>();
+        for (HierarchicalConfiguration sub : config.configurationsAt("PIDService"))
+            configs.add(new XMLConfiguration(sub));
+        return new PIDRouter(configs, ssl);
+    }
+
+    public PIDRouter(List<XMLConfiguration> configs, SSLContext ssl) throws ConfigurationException {
+        if (configs.isEmpty())
+            throw new IllegalArgumentException("No PIDService configurations specified!");
+        try {
+            for (XMLConfiguration config : configs) {
+                String prefix = config.getString("HandlePrefix");
+                if (this.services.containsKey(prefix))
+                    throw new ConfigurationException("Prefix["+prefix+"] is configured more than once");
+                String server = serverKey(config);
+                HandleTransport pool = null;
+                if (config.getStringArray("resolve.mirror").length > 0) {
+                    pool = this.mirrors.get(server);
+                    if (pool == null) {
+                        pool = HandleConnectionPool.withDefaultTrust(config);
+                        this.mirrors.put(server, pool);
+                    }
+                }
+                PIDService owner = this.servers.get(server);
+                PIDService ps;
+                if (owner == null) {
+                    ps = new PIDService(config, ssl, null, null, HandleThrottle.fromConfiguration(config), pool);
+                    this.servers.put(server, ps);
+                } else {
+                    XMLConfiguration first = owner.getConfiguration();
+                    if (config.getDouble("maxRequestsPerSecond", 0.0) != first.getDouble("maxRequestsPerSecond", 0.0)
+                        || config.getInt("maxConcurrent", 0) != first.getInt("maxConcurrent", 0))
+                        logger.warn("Prefix["+prefix+"] shares the throttle of prefix["+first.getString("HandlePrefix")+"] on its server, its own maxRequestsPerSecond and maxConcurrent are ignored");
+                    ps = new PIDService(config, ssl, owner.getTransport(), owner.getCredentials(), owner.getThrottle(), pool);
+                }
+                this.services.put(prefix, ps);
+                this.serverKeys.put(prefix, server);
+            }
+        } catch (ConfigurationException | RuntimeException e) {
+            // don't leak the transports already set up
+            try {
+                close();
+            } catch (IOException ignored) {
+                logger.warn("PIDRouter couldn't close the transports: "+ignored);
+            }
+            throw e;
+        }
+        logger.debug("PIDRouter "+this.services.keySet()+" on "+this.servers.size()+" server(s)");
+    }
+
+    /*
+    the prefixes with the same key can share a transport
+    */
+    private static String serverKey(XMLConfiguration config) {
+        return config.getString("transport", "pool").toLowerCase() + "|" + config.getString("URI")
+            + "|" + config.getString("private_key", "") + "|" + config.getString("private_certificate", "") + "|" + config.getString("server_certificate_only", "");
+    }
+
+    public Set<String> getPrefixes() {
+        return Collections.unmodifiableSet(this.services.keySet());
+    }
+
+    /**
+     * The PIDService of the prefix, or null if the prefix isn't configured.
+     */
+    public PIDService getService(String prefix) {
+        return this.services.get(prefix);
+    }
+
+    /*
+    the PIDService of the prefix of the handle (prefix/suffix)
+    */
+    private PIDService route(String a_handle) {
+        int slash = a_handle.indexOf('/');
+        if (slash < 0)
+            throw new IllegalArgumentException("Handle["+a_handle+"] has no prefix");
+        PIDService ps = this.services.get(a_handle.substring(0, slash));
+        if (ps == null)
+            throw new IllegalArgumentException("No PIDService for the prefix of handle["+a_handle+"]");
+        return ps;
+    }
+
+    private static String suffix(String a_handle) {
+        return a_handle.substring(a_handle.indexOf('/') + 1);
+    }
+
+    /**
+     * Create a new handle, with a random suffix, under the prefix.
+     */
+    public String requestHandle(String prefix, String a_location) throws IOException, HandleCreationException {
+        PIDService ps = getService(prefix);
+        if (ps == null)
+            throw new IllegalArgumentException("No PIDService for prefix["+prefix+"]");
+        try {
+            return ps.requestHandle(a_location);
+        } catch (IOException | HandleCreationException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Handle creation failed under prefix["+prefix+"]", e);
+        }
+    }
+
+    /**
+     * @see PIDService#upsertHandle(String, String)
+     */
+    public boolean upsertHandle(String a_handle, String a_location) throws IOException, HandleCreationException {
+        return route(a_handle).upsertHandle(suffix(a_handle), a_location);
+    }
+
+    public String getPIDLocation(String a_handle) throws IOException, HandleCreationException {
+        try {
+            return route(a_handle).getPIDLocation(a_handle);
+        } catch (IOException | HandleCreationException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Handle retrieval failed["+a_handle+"]", e);
+        }
+    }
+
+    public HandleRecord getHandleRecord(String a_handle) throws IOException, HandleCreationException {
+        return route(a_handle).getHandleRecord(a_handle);
+    }
+
+    public void updateLocation(String a_handle, String a_location) throws IOException, HandleCreationException {
+        try {
+            route(a_handle).updateLocation(a_handle, a_location);
+        } catch (IOException | HandleCreationException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Handle update failed["+a_handle+"]", e);
+        }
+    }
+
+    public void deleteHandle(String a_handle) throws IOException {
+        PIDService ps = route(a_handle);
+        try {
+            // Handle v8 deletes by suffix, EPIC v2 by prefix/suffix
+            ps.deleteHandle(ps.getVersion().equals("8") ? suffix(a_handle) : a_handle);
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Handle deletion failed["+a_handle+"]", e);
+        }
+    }
+
+    /**
+     * @see PIDService#listHandles(Consumer)
+     */
+    public long listHandles(String prefix, Consumer<String> suffixes) throws IOException, HandleCreationException {
+        PIDService ps = getService(prefix);
+        if (ps == null)
+            throw new IllegalArgumentException("No PIDService for prefix["+prefix+"]");
+        return ps.listHandles(suffixes);
+    }
+
+    public void reloadCredentials() {
+        for (PIDService ps : this.servers.values())
+            ps.reloadCredentials();
+    }
+
+    public void setMetrics(HandleMetrics metrics) {
+        for (PIDService ps : this.services.values())
+            ps.setMetrics(metrics);
+    }
+
+    /**
+     * A batch upsert of rows for any of the prefixes: each server gets its own
+     * BatchUpserter (concurrency and window), shared by its prefixes, so a
+     * slow or failing server doesn't hold up the rows for the others. The
+     * concurrency limits the rows of this batch per server; the server as a
+     * whole is limited by the maxConcurrent of its shared throttle. Submitting blocks while the window of the row's server is full,
+     * so a single thread feeding the rows of all servers still waits for the
+     * slowest one once its window fills up; feed each server from its own
+     * thread to keep the others going.
+     */
+    public Batch newBatch(int concurrency, int window, boolean virtual, double verify, Consumer<BatchUpserter.Result> listener) {
+        return new Batch(concurrency, window, virtual, verify, listener);
+    }
+
+    public class Batch implements Closeable {
+
+        private final int concurrency;
+        private final int window;
+        private final boolean virtual;
+        private final double verify;
+        private final Consumer<BatchUpserter.Result> listener;
+        // per server
+        private final Map<String, BatchUpserter> upserters = new ConcurrentHashMap<>();
+
+        private Batch(int concurrency, int window, boolean virtual, double verify, Consumer<BatchUpserter.Result> listener) {
+            this.concurrency = concurrency;
+            this.window = window;
+            this.virtual = virtual;
+            this.verify = verify;
+            this.listener = listener;
+        }
+
+        /**
+         * Schedule the upsert of a row for the prefix, blocks while the
+         * in-flight window of the prefix's server is full.
+         */
+        public void submit(String prefix, BatchUpserter.Row row) throws InterruptedException {
+            PIDService ps = getService(prefix);
+            if (ps == null)
+                throw new IllegalArgumentException("No PIDService for prefix["+prefix+"]");
+            String server = serverKeys.get(prefix);
+            BatchUpserter upserter = this.upserters.get(server);
+            if (upserter == null)
+                upserter = this.upserters.computeIfAbsent(server, (String s) -> new BatchUpserter(this.concurrency, this.window, this.virtual, this.verify, this.listener));
+            upserter.submit(row, ps, prefix);
+        }
+
+        /**
+         * Wait till all submitted rows, for all prefixes, are done.
+         */
+        public void await() throws InterruptedException {
+            for (BatchUpserter upserter : this.upserters.values())
+                upserter.await();
+        }
+
+        public long getCount(BatchUpserter.Outcome outcome) {
+            long count = 0L;
+            for (BatchUpserter upserter : this.upserters.values())
+                count += upserter.getCount(outcome);
+            return count;
+        }
+
+        @Override
+        public void close() {
+            for (BatchUpserter upserter : this.upserters.values())
+                upserter.close();
+        }
+    }
+
+    /*
+    close the transport and the mirror pool of each server once, the PIDServices of a server share them
+    */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (PIDService ps : this.servers.values()) {
+            try {
+                ps.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        for (HandleTransport pool : this.mirrors.values()) {
+            try {
+                pool.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+}
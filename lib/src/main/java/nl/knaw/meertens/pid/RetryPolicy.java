@@ -0,0 +1,181 @@
+package nl.knaw.meertens.pid;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLException;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConversionException;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+
+/**
+ * When and how long to wait before retrying a request to the PID server. A
+ * request is retried when it fails with an IOException (e.g., a connection
+ * reset) or the server answers with one of the retryable status codes, with
+ * an exponential backoff plus jitter, or as long as the server asks by a
+ * Retry-After header.
+ *
+ * It's configured by an optional {@code <retry>} section in the PIDService
+ * configuration:
+ * <pre>
+ * &lt;retry&gt;
+ *   &lt;maxAttempts&gt;3&lt;/maxAttempts&gt;          1, i.e., no retries, by default
+ *   &lt;initialBackoff&gt;200&lt;/initialBackoff&gt;  milliseconds before the first retry
+ *   &lt;maxBackoff&gt;10000&lt;/maxBackoff&gt;        maximum milliseconds between attempts
+ *   &lt;retryOn&gt;429,500,502,503,504&lt;/retryOn&gt; retryable status codes
+ * &lt;/retry&gt;
+ * </pre>
+ *
+ * Whether a retry is safe depends on the request, which is up to the
+ * PIDService: GET and PUT to a known handle are idempotent, but before a
+ * minted (random UUID) handle is requested again it is checked whether the
+ * earlier attempt did create it after all.
+ */
+public class RetryPolicy {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 1;
+    public static final long DEFAULT_INITIAL_BACKOFF = 200L;
+    public static final long DEFAULT_MAX_BACKOFF = 10000L;
+    public static final String DEFAULT_RETRY_ON = "429,500,502,503,504";
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+        Thread t = new Thread(r, "epicify-retry");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final int maxAttempts;
+    private final long initialBackoff;
+    private final long maxBackoff;
+    private final Set<Integer> retryOn = new HashSet<>();
+
+    /**
+     * @throws ConversionException if a value of the {@code <retry>} section is invalid
+     */
+    public RetryPolicy(Configuration config) {
+        this(config.getInt("retry.maxAttempts", DEFAULT_MAX_ATTEMPTS),
+             config.getLong("retry.initialBackoff", DEFAULT_INITIAL_BACKOFF),
+             config.getLong("retry.maxBackoff", DEFAULT_MAX_BACKOFF),
+             retryOn(config));
+    }
+
+    /**
+     * @param retryOn the retryable status codes, separated by commas or spaces
+     * @throws IllegalArgumentException if retryOn has something else than status codes
+     */
+    public RetryPolicy(int maxAttempts, long initialBackoff, long maxBackoff, String retryOn) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        for (String code : retryOn.split("[,\\s]+")) {
+            if (code.isEmpty())
+                continue;
+            int status;
+            try {
+                status = Integer.parseInt(code);
+            } catch (NumberFormatException e) {
+                status = -1;
+            }
+            if (status < 100 || status > 599)
+                throw new IllegalArgumentException("RetryPolicy retryOn["+retryOn+"] has an invalid status code["+code+"]");
+            this.retryOn.add(status);
+        }
+    }
+
+    /*
+    the retryOn of the configuration, checked here, so the error names the configuration key
+    */
+    private static String retryOn(Configuration config) {
+        String retryOn = config.getString("retry.retryOn", DEFAULT_RETRY_ON);
+        try {
+            new RetryPolicy(1, 0L, 0L, retryOn);
+        } catch (IllegalArgumentException e) {
+            throw new ConversionException("Invalid <retry><retryOn>: "+e.getMessage(), e);
+        }
+        return retryOn;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Is there an attempt left after this one?
+     */
+    public boolean canRetry(int attempt) {
+        return attempt < this.maxAttempts;
+    }
+
+    public boolean isRetryable(int status) {
+        return this.retryOn.contains(status);
+    }
+
+    /**
+     * Is a request that failed with this exception worth retrying? A
+     * timeout (socket, connect or waiting for a pooled connection) or other
+     * connection problem is. An interrupt isn't, nor are an unknown host and a
+     * TLS failure (e.g., an expired client certificate), as they fail again.
+     */
+    public boolean isRetryable(IOException e) {
+        if (Thread.currentThread().isInterrupted())
+            return false;
+        if (e instanceof UnknownHostException || e instanceof SSLException)
+            return false;
+        if (e instanceof SocketTimeoutException
+            || e instanceof ConnectTimeoutException
+            || e instanceof ConnectionPoolTimeoutException
+            || e instanceof org.apache.hc.client5.http.ConnectTimeoutException)
+            return true;
+        return !(e instanceof InterruptedIOException);
+    }
+
+    /**
+     * The milliseconds to wait before the next attempt: the exponential backoff
+     * with "equal jitter", or what the server asked for in a Retry-After header.
+     */
+    public long getBackoff(int attempt, HttpResponse response) {
+        if (response != null) {
+            Header retryAfter = response.getFirstHeader("Retry-After");
+            if (retryAfter != null) {
+                try {
+                    return Math.min(this.maxBackoff, Long.parseLong(retryAfter.getValue().trim()) * 1000L);
+                } catch (NumberFormatException e) {
+                    // an HTTP date, fall back to our own backoff
+                }
+            }
+        }
+        long backoff = Math.min(this.maxBackoff, this.initialBackoff << Math.min(attempt - 1, 20));
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    public void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+    }
+
+    /**
+     * A future that completes after the delay, without blocking a thread.
+     */
+    public static CompletableFuture<Void> delay(long millis) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        timer.schedule(() -> future.complete(null), millis, TimeUnit.MILLISECONDS);
+        return future;
+    }
+}
@@ -0,0 +1,41 @@
+package nl.knaw.meertens.pid;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors that run batch and bulk PIDService operations.
+ *
+ * This is the Java 21 version in the multi-release jar, which can run each
+ * task on its own virtual thread, so thousands of requests can wait on the
+ * PID server without tying up a platform thread each.
+ */
+public class BatchExecutors {
+
+    private BatchExecutors() {
+    }
+
+    /**
+     * Can {@link #newExecutor(String, int, boolean)} create virtual threads on this JVM?
+     */
+    public static boolean isVirtualThreadsSupported() {
+        return true;
+    }
+
+    /**
+     * An executor with a fixed pool of daemon threads, or, if virtual is true,
+     * one that starts a virtual thread per task. The concurrency of a virtual
+     * thread executor isn't bounded, so the caller has to limit it.
+     */
+    public static ExecutorService newExecutor(String name, int threads, boolean virtual) {
+        if (virtual)
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 1).factory());
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, (Runnable r) -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+}
@@ -0,0 +1,33 @@
+package nl.knaw.meertens.pid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BatchJournalTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void tornLastLine() throws IOException {
+        File file = tmp.newFile("journal.tsv");
+        // the crash tore the record of line 12 after its line number, so it would read as line 1
+        Files.write(file.toPath(), "3\tNEW\tAB/3\n1".getBytes(StandardCharsets.UTF_8));
+        try (BatchJournal journal = new BatchJournal(file)) {
+            assertEquals(1L, journal.getResumed());
+            assertTrue(journal.isDone(3));
+            assertFalse(journal.isDone(1));
+        }
+        assertEquals("3\tNEW\tAB/3\n", new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,35 @@
+package nl.knaw.meertens.pid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class CsvReaderTest {
+
+    @Test
+    public void quotedFieldBeforeCR() throws IOException {
+        try (CsvReader csv = new CsvReader(new StringReader("\"a\"\rb"))) {
+            assertEquals(Arrays.asList("a"), csv.next());
+            assertEquals(1L, csv.getLine());
+            assertEquals(Arrays.asList("b"), csv.next());
+            assertEquals(2L, csv.getLine());
+            assertNull(csv.next());
+        }
+    }
+
+    @Test
+    public void lineEndings() throws IOException {
+        try (CsvReader csv = new CsvReader(new StringReader("a,\"x\"\r\nb,\"y\rz\"\rc,z\n"))) {
+            assertEquals(Arrays.asList("a", "x"), csv.next());
+            assertEquals(Arrays.asList("b", "y\nz"), csv.next());
+            assertEquals(Arrays.asList("c", "z"), csv.next());
+            assertEquals(4L, csv.getLine());
+            assertNull(csv.next());
+        }
+    }
+}
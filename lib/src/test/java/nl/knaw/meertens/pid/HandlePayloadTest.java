@@ -0,0 +1,107 @@
+package nl.knaw.meertens.pid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class HandlePayloadTest {
+
+    // quotes, backslashes, control characters, 2 and 3 byte characters, and one outside the BMP
+    private static final String LOCATION = "http://example.org/a?q=\"x\"&p=c:\\dir\u0000\u001f\n\t\u00e9\u20ac\ud83d\ude00/end";
+
+    private static byte[] escaped(String s, int size) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HandlePayload.writeEscaped(out, s, new byte[size]);
+        byte[] bytes = out.toByteArray();
+        assertEquals(bytes.length, HandlePayload.escapedLength(s));
+        return bytes;
+    }
+
+    private static String utf8(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void escapes() throws IOException {
+        assertEquals("a\\\"b\\\\c\\u0000\\u001f\\u000a\\u000d\\u0009\u007f", utf8(escaped("a\"b\\c\u0000\u001f\n\r\t\u007f", 512)));
+        assertEquals("", utf8(escaped("", 512)));
+    }
+
+    @Test
+    public void utf8() throws IOException {
+        String s = "\u00e9\u07ff\u0800\u20ac\uffff\ud800\udc00\ud83d\ude00\udbff\udfff";
+        assertArrayEquals(s.getBytes(StandardCharsets.UTF_8), escaped(s, 512));
+    }
+
+    @Test
+    public void loneSurrogates() throws IOException {
+        // replaced by ?, like the JDK's encoder does
+        String[] lone = { "a\ud83db", "a\ude00b", "\ude00\ud83d", "end\ud83d" };
+        for (String s : lone) {
+            assertArrayEquals(s, s.getBytes(StandardCharsets.UTF_8), escaped(s, 512));
+            assertEquals(s.replaceAll("[\ud800-\udfff]", "?"), utf8(escaped(s, 512)));
+        }
+    }
+
+    @Test
+    public void smallBuffers() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 50; i++)
+            sb.append(LOCATION).append("\ud83d");
+        String s = sb.toString();
+        byte[] expected = escaped(s, 512);
+        for (int size = 6; size <= 16; size++)
+            assertArrayEquals(expected, escaped(s, size));
+    }
+
+    private static String body(HandlePayload payload) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        payload.writeTo(out);
+        assertEquals(out.size(), payload.getContentLength());
+        return utf8(out.toByteArray());
+    }
+
+    @Test
+    public void handleV8() throws IOException {
+        String body = body(new HandlePayload(HandlePayload.Template.handle("11304", "pid\"admin\"@example.org"), LOCATION, 1234L));
+        HandleRecord record = HandleRecord.parseHandle(new JsonReader(new StringReader(body)), "11304/abc");
+        assertEquals(3, record.getValues().size());
+        assertEquals(LOCATION, record.getLocation());
+        assertEquals("string", record.getValue(1).getFormat());
+        assertEquals("pid\"admin\"@example.org", record.getData("EMAIL"));
+        assertEquals("admin", record.getValue(100).getFormat());
+        assertEquals("{\"handle\":\"0.NA/11304\",\"index\":200,\"permissions\":011111110011}", record.getData("HS_ADMIN"));
+
+        body = body(new HandlePayload(HandlePayload.Template.handle("11304", null), "x\ud83d", 1234L));
+        record = HandleRecord.parseHandle(new JsonReader(new StringReader(body)), "11304/abc");
+        assertEquals(2, record.getValues().size());
+        assertEquals("x?", record.getLocation());
+
+        body = body(new HandlePayload(HandlePayload.Template.url(), LOCATION, 1234L));
+        record = HandleRecord.parseHandle(new JsonReader(new StringReader(body)), "11304/abc");
+        assertEquals(1, record.getValues().size());
+        assertEquals(LOCATION, record.getLocation());
+    }
+
+    @Test
+    public void epicV2() throws IOException {
+        String body = body(new HandlePayload(HandlePayload.Template.epic("pid\\admin@example.org"), LOCATION, 1234L));
+        HandleRecord record = HandleRecord.parseEpic(new JsonReader(new StringReader(body)), "11304/abc");
+        assertEquals(2, record.getValues().size());
+        assertEquals(LOCATION, record.getLocation());
+        assertEquals("1234", record.getValue(1).getTimestamp());
+        assertEquals("pid\\admin@example.org", record.getData("EMAIL"));
+        assertEquals("1234", record.getValue(2).getTimestamp());
+
+        body = body(new HandlePayload(HandlePayload.Template.epic(null), LOCATION, 1234L));
+        record = HandleRecord.parseEpic(new JsonReader(new StringReader(body)), "11304/abc");
+        assertEquals(1, record.getValues().size());
+        assertEquals(LOCATION, record.getLocation());
+    }
+}
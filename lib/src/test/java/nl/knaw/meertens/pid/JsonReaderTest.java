@@ -0,0 +1,168 @@
+package nl.knaw.meertens.pid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class JsonReaderTest {
+
+    /*
+    a reader handing out a few characters at a time, so every token gets split across buffer refills
+    */
+    private static class Trickle extends Reader {
+
+        private final Reader reader;
+        private final int size;
+
+        Trickle(String s, int size) {
+            this.reader = new StringReader(s);
+            this.size = size;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            return this.reader.read(buffer, offset, Math.min(length, this.size));
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.reader.close();
+        }
+    }
+
+    private static String pad(int n) {
+        char[] pad = new char[n];
+        Arrays.fill(pad, 'x');
+        return new String(pad);
+    }
+
+    @Test
+    public void escapesAcrossRefills() throws IOException {
+        String s = "{\"n\\u00e9\":\"a\\u00e9\\\"\\\\\\/\\b\\f\\n\\r\\t\\ud83d\\ude00z\",\"skip\":[\"\\u0041\",{\"\\\"\":1}],\"last\":true}";
+        for (int size = 1; size <= 7; size++) {
+            try (JsonReader json = new JsonReader(new Trickle(s, size))) {
+                json.beginObject();
+                assertEquals("n\u00e9", json.nextName());
+                assertEquals("a\u00e9\"\\/\b\f\n\r\t\ud83d\ude00z", json.nextString());
+                assertEquals("skip", json.nextName());
+                json.skipValue();
+                assertTrue(json.findName("last"));
+                assertEquals("true", json.nextString());
+                assertFalse(json.hasNext());
+                json.endObject();
+                assertEquals(JsonReader.Token.END_DOCUMENT, json.peek());
+            }
+        }
+    }
+
+    @Test
+    public void escapeAtTheEndOfTheBuffer() throws IOException {
+        // move the escape across the 8192 characters of the buffer, one position at a time
+        for (int n = 8180; n <= 8192; n++) {
+            String s = "[\"" + pad(n) + "\\u00e9\"]";
+            try (JsonReader json = new JsonReader(new StringReader(s))) {
+                json.beginArray();
+                assertEquals(pad(n) + "\u00e9", json.nextString());
+                json.endArray();
+                assertEquals(JsonReader.Token.END_DOCUMENT, json.peek());
+            }
+        }
+    }
+
+    @Test
+    public void malformed() throws IOException {
+        String[] malformed = {
+            "",
+            "{",
+            "{\"a\"",
+            "{\"a\" 1}",
+            "{\"a\":}",
+            "{\"a\":1,}",
+            "{\"a\":1 \"b\":2}",
+            "[1,]",
+            "[1 2]",
+            "[\"a]",
+            "[\"a\\x\"]",
+            "[\"\\u12g4\"]",
+            "[\"\\u12",
+            "[\"a\nb\"]",
+            "[tru]",
+            "[nul]",
+            "[+1]",
+            "{\"a\":1}x",
+            "{'a':1}"
+        };
+        for (String s : malformed) {
+            try (JsonReader json = new JsonReader(new StringReader(s))) {
+                json.skipValue();
+                json.peek();
+                fail("accepted malformed JSON[" + s + "]");
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("JSON["));
+            }
+        }
+    }
+
+    @Test
+    public void nestedValueCopied() throws IOException {
+        String s = "{\"values\":[{\"index\":2,\"type\":\"META\",\"data\":{\"format\":\"string\",\"value\":"
+            + "{ \"a\" : {\"b\":[ [], {}, [1,[2]], {\"c\":null} ]}, \"e\":{}, \"f\":[{\"g\":true},false,-1.5e3],"
+            + " \"q\\\"\\\\\":\"t\\u0001\\n\" }}}]}";
+        for (int size = 1; size <= 3; size++) {
+            HandleRecord record = HandleRecord.parseHandle(new JsonReader(new Trickle(s, size)), "11304/x");
+            assertEquals(
+                "{\"a\":{\"b\":[[],{},[1,[2]],{\"c\":null}]},\"e\":{},\"f\":[{\"g\":true},false,-1.5e3],"
+                + "\"q\\\"\\\\\":\"t\\u0001\\u000a\"}",
+                record.getData("META"));
+        }
+    }
+
+    @Test
+    public void handleV8() throws IOException {
+        String s = "{\"responseCode\":1,\"handle\":\"11304/abc\",\"values\":["
+            + "{\"index\":1,\"type\":\"URL\",\"data\":{\"format\":\"string\",\"value\":\"http://example.org/?a=1&b=\\u00e9\"},"
+            + "\"ttl\":86400,\"timestamp\":\"2020-01-01T00:00:00Z\"},"
+            + "{\"index\":100,\"type\":\"HS_ADMIN\",\"data\":{\"format\":\"admin\",\"value\":"
+            + "{\"handle\":\"0.NA/11304\",\"index\":200,\"permissions\":\"011111110011\"}},\"ttl\":86400,\"timestamp\":\"2020-01-01T00:00:00Z\"},"
+            + "{\"index\":3,\"type\":\"EMPTY\",\"data\":{\"format\":\"string\",\"value\":null},\"unknown\":[1,{\"x\":2}]}]}";
+        HandleRecord record = HandleRecord.parseHandle(new JsonReader(new StringReader(s)), null);
+        assertEquals("11304/abc", record.getHandle());
+        assertEquals(3, record.getValues().size());
+        assertEquals("http://example.org/?a=1&b=\u00e9", record.getLocation());
+        HandleRecord.Value url = record.getValue(1);
+        assertEquals("string", url.getFormat());
+        assertEquals(86400L, url.getTtl());
+        assertEquals("2020-01-01T00:00:00Z", url.getTimestamp());
+        HandleRecord.Value admin = record.getValue(100);
+        assertEquals("HS_ADMIN", admin.getType());
+        assertEquals("admin", admin.getFormat());
+        assertEquals("{\"handle\":\"0.NA/11304\",\"index\":200,\"permissions\":\"011111110011\"}", admin.getData());
+        assertNull(record.getValue(3).getData());
+    }
+
+    @Test
+    public void epicV2() throws IOException {
+        String s = "[{\"idx\":\"1\",\"type\":\"URL\",\"parsed_data\":\"http://example.org/\",\"data\":\"aHR0cDovL2V4YW1wbGUub3JnLw==\","
+            + "\"timestamp\":\"2020-01-01T00:00:00Z\",\"ttl_type\":\"0\",\"ttl\":\"86400\",\"refs\":[],\"privs\":\"rwr-\"},"
+            + "{\"idx\":100,\"type\":\"HS_ADMIN\",\"parsed_data\":{\"adminId\":\"0.NA/11304\",\"adminIdIndex\":200,\"perms\":{\"add_handle\":true}},"
+            + "\"timestamp\":\"2020-01-01T00:00:00Z\",\"ttl\":86400}]";
+        HandleRecord record = HandleRecord.parseEpic(new JsonReader(new StringReader(s)), "11304/abc");
+        assertEquals("11304/abc", record.getHandle());
+        assertEquals(2, record.getValues().size());
+        HandleRecord.Value url = record.getValue(1);
+        assertEquals("URL", url.getType());
+        assertEquals("http://example.org/", url.getData());
+        assertNull(url.getFormat());
+        assertEquals(86400L, url.getTtl());
+        assertEquals("{\"adminId\":\"0.NA/11304\",\"adminIdIndex\":200,\"perms\":{\"add_handle\":true}}", record.getData("HS_ADMIN"));
+    }
+}
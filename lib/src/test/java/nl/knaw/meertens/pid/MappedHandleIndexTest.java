@@ -0,0 +1,144 @@
+package nl.knaw.meertens.pid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedHandleIndexTest {
+
+    private static final int MASK = MappedHandleIndex.DEFAULT_CAPACITY - 1;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    /*
+    suffixes whose fingerprints all start probing at this slot of a table of the default capacity
+    */
+    private static List<String> colliding(int slot, int n) {
+        List<String> suffixes = new ArrayList<String>();
+        for (int i = 0; suffixes.size() < n; i++) {
+            String suffix = "S" + i;
+            if (((int) HandleIndex.fingerprint(suffix) & MASK) == slot)
+                suffixes.add(suffix);
+        }
+        return suffixes;
+    }
+
+    @Test
+    public void collidingSuffixes() throws IOException {
+        List<String> suffixes = colliding(7, 4);
+        try (MappedHandleIndex index = new MappedHandleIndex(new File(tmp.getRoot(), "index"))) {
+            for (int i = 0; i < suffixes.size(); i++)
+                index.put(suffixes.get(i), 100L + i);
+            assertEquals(4, index.size());
+            for (int i = 0; i < suffixes.size(); i++)
+                assertEquals(100L + i, index.get(suffixes.get(i)));
+            // overwriting an entry further down the probe sequence doesn't add one
+            index.put(suffixes.get(2), 42L);
+            assertEquals(42L, index.get(suffixes.get(2)));
+            assertEquals(4, index.size());
+            assertFalse(index.contains(colliding(7, 5).get(4)));
+            assertEquals(HandleIndex.UNKNOWN, index.get("missing"));
+            assertFalse(index.remove("missing"));
+        }
+    }
+
+    @Test
+    public void removeShiftsBack() throws IOException {
+        // the probe sequences wrap around the end of the table, and one of another slot runs into them
+        List<String> last = colliding(MASK, 3);
+        List<String> first = colliding(0, 2);
+        try (MappedHandleIndex index = new MappedHandleIndex(new File(tmp.getRoot(), "index"))) {
+            index.put(last.get(0), 1L);  // slot MASK
+            index.put(last.get(1), 2L);  // slot 0
+            index.put(first.get(0), 3L); // slot 1
+            index.put(last.get(2), 4L);  // slot 2
+            index.put(first.get(1), 5L); // slot 3
+
+            assertTrue(index.remove(last.get(0)));
+            assertFalse(index.contains(last.get(0)));
+            assertEquals(2L, index.get(last.get(1)));
+            assertEquals(3L, index.get(first.get(0)));
+            assertEquals(4L, index.get(last.get(2)));
+            assertEquals(5L, index.get(first.get(1)));
+
+            assertTrue(index.remove(first.get(0)));
+            assertEquals(2L, index.get(last.get(1)));
+            assertEquals(4L, index.get(last.get(2)));
+            assertEquals(5L, index.get(first.get(1)));
+            assertEquals(3, index.size());
+
+            // the slots freed by the shifts are reused
+            index.put(first.get(0), 6L);
+            index.put(last.get(0), 7L);
+            assertEquals(6L, index.get(first.get(0)));
+            assertEquals(7L, index.get(last.get(0)));
+            assertEquals(5, index.size());
+        }
+    }
+
+    @Test
+    public void grow() throws IOException {
+        File file = new File(tmp.getRoot(), "index");
+        int n = (int) (MappedHandleIndex.DEFAULT_CAPACITY * MappedHandleIndex.MAX_LOAD) + 100;
+        try (MappedHandleIndex index = new MappedHandleIndex(file)) {
+            for (int i = 0; i < n; i++)
+                index.put("S" + i, i + 1L);
+            assertEquals(n, index.size());
+            assertTrue(file.length() > 64L + 16L * MappedHandleIndex.DEFAULT_CAPACITY);
+            for (int i = 0; i < n; i++)
+                assertEquals(i + 1L, index.get("S" + i));
+        }
+        assertFalse(new File(tmp.getRoot(), "index.grow").exists());
+        try (MappedHandleIndex index = new MappedHandleIndex(file)) {
+            assertEquals(n, index.size());
+            assertEquals(1L, index.get("S0"));
+            assertEquals((long) n, index.get("S" + (n - 1)));
+        }
+    }
+
+    @Test
+    public void sizedForExpected() throws IOException {
+        File file = new File(tmp.getRoot(), "index");
+        try (MappedHandleIndex index = new MappedHandleIndex(file, MappedHandleIndex.DEFAULT_CAPACITY)) {
+            assertEquals(64L + 16L * 2 * MappedHandleIndex.DEFAULT_CAPACITY, file.length());
+        }
+    }
+
+    @Test
+    public void dirtyReopened() throws IOException {
+        File file = new File(tmp.getRoot(), "index");
+        try (MappedHandleIndex index = new MappedHandleIndex(file)) {
+            index.put("a", 1L);
+            index.put("b", 2L);
+            index.put("c", 3L);
+            index.remove("b");
+            index.flush();
+            // as if the crash happened before the size was written
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.seek(24);
+                raf.writeLong(99L);
+            }
+            try (MappedHandleIndex reopened = new MappedHandleIndex(file)) {
+                assertEquals(2, reopened.size());
+                assertEquals(1L, reopened.get("a"));
+                assertFalse(reopened.contains("b"));
+                assertEquals(3L, reopened.get("c"));
+            }
+        }
+        // closed cleanly, the size is trusted
+        try (MappedHandleIndex index = new MappedHandleIndex(file)) {
+            assertEquals(2, index.size());
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package nl.knaw.meertens.pid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/*
+PIDServices over the connection pool, i.e., with the real request and response handling, against a MockHandleServer
+*/
+public class MockHandleServerTest {
+
+    private static final String PREFIX = "11.T1";
+
+    @BeforeClass
+    public static void noDelay() {
+        if (System.getProperty("sun.net.httpserver.nodelay") == null)
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private static XMLConfiguration config(String version, String uri) {
+        XMLConfiguration config = new XMLConfiguration();
+        config.setProperty("URI", uri);
+        config.setProperty("HandlePrefix", PREFIX);
+        config.setProperty("email", "test@example.org");
+        config.setProperty("status", "production");
+        config.setProperty("transport", "pool");
+        if (version.equals("8")) {
+            // plain HTTP, so the key and certificate are never read
+            config.setProperty("private_key", "missing-key.pem");
+            config.setProperty("private_certificate", "missing-cert.pem");
+        } else {
+            config.setProperty("hostName", "localhost");
+            config.setProperty("userName", "user");
+            config.setProperty("password", "secret");
+        }
+        config.setProperty("retry.maxAttempts", 5);
+        config.setProperty("retry.initialBackoff", 10);
+        config.setProperty("retry.maxBackoff", 200);
+        return config;
+    }
+
+    private static MockHandleServer mock(String version) throws Exception {
+        return new MockHandleServer(config(version, "http://localhost:0" + (version.equals("8") ? "/api/handles/" : "/handles/")), 0);
+    }
+
+    private static void roundTrip(String version) throws Exception {
+        try (MockHandleServer mock = mock(version); PIDService ps = new PIDService(config(version, mock.getURI()), null)) {
+            String handle = ps.requestHandle("abc", "http://example.org/1");
+            assertEquals(PREFIX + "/abc", handle);
+            assertEquals("http://example.org/1", mock.getStore().getHandle(handle).getLocation());
+            HandleRecord record = ps.getHandleRecord(handle);
+            assertEquals("http://example.org/1", record.getLocation());
+            assertEquals("test@example.org", record.getData("EMAIL"));
+            assertEquals("http://example.org/1", ps.getPIDLocation(handle));
+
+            assertFalse(ps.upsertHandle("abc", "http://example.org/2"));
+            assertEquals("http://example.org/2", ps.getHandleRecord(handle).getLocation());
+            assertTrue(ps.upsertHandle("def", "http://example.org/\u00e9?q=\"x\""));
+            assertEquals("http://example.org/\u00e9?q=\"x\"", ps.getHandleRecord(PREFIX + "/def").getLocation());
+
+            ps.updateLocation(handle, "http://example.org/3");
+            assertEquals("http://example.org/3", ps.getHandleRecord(handle).getLocation());
+
+            // a Handle v8 delete takes the suffix, an EPIC v2 one the handle
+            ps.deleteHandle(version.equals("8") ? "abc" : handle);
+            assertNull(mock.getStore().getHandle(handle));
+            assertNull(ps.getHandleRecord(handle));
+            assertEquals(1, mock.getStore().size());
+            assertEquals(0L, mock.getErrorCount());
+        }
+    }
+
+    @Test
+    public void handleV8() throws Exception {
+        roundTrip("8");
+    }
+
+    @Test
+    public void epicV2() throws Exception {
+        roundTrip("2");
+    }
+
+    @Test
+    public void retryAfter() throws Exception {
+        try (MockHandleServer mock = mock("8"); PIDService ps = new PIDService(config("8", mock.getURI()), null)) {
+            ps.upsertHandle("abc", "http://example.org/1");
+            mock.setErrors(1.0, 503);
+            long start = System.nanoTime();
+            CompletableFuture<String> location = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return ps.getPIDLocation(PREFIX + "/abc");
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            // the server is back once it answered the first attempt with a 503
+            while (mock.getErrorCount() == 0L && !location.isDone())
+                Thread.sleep(1L);
+            mock.setErrors(0.0, 503);
+            assertEquals("http://example.org/1", location.get(10, TimeUnit.SECONDS));
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(mock.getErrorCount() >= 1L);
+            assertEquals(mock.getErrorCount() + 2L, mock.getRequestCount());
+            // the Retry-After of 1 second, capped by the maxBackoff
+            assertTrue(millis + "ms", millis >= 200L);
+        }
+    }
+
+    @Test
+    public void partialUpdate() throws Exception {
+        try (MockHandleServer mock = mock("8")) {
+            XMLConfiguration config = config("8", mock.getURI());
+            config.setProperty("update.partial", true);
+            try (PIDService ps = new PIDService(config, null)) {
+                ps.upsertHandle("abc", "http://example.org/1");
+                ps.updateLocation(PREFIX + "/abc", "http://example.org/2");
+                HandleRecord record = mock.getStore().getHandle(PREFIX + "/abc");
+                assertEquals("http://example.org/2", record.getLocation());
+                assertEquals("test@example.org", record.getData("EMAIL"));
+                assertNotNull(record.getData("HS_ADMIN"));
+
+                // the partial PUT creates a handle that doesn't exist, without HS_ADMIN, so it's deleted again
+                try {
+                    ps.updateLocation(PREFIX + "/missing", "http://example.org/3");
+                    fail("updated a handle that doesn't exist");
+                } catch (HandleV8Protocol.PartialCreationException e) {
+                    assertEquals("missing", e.getSuffix());
+                }
+                assertNull(mock.getStore().getHandle(PREFIX + "/missing"));
+                assertEquals(1, mock.getStore().size());
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package nl.knaw.meertens.pid;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.junit.Test;
+
+public class PIDRouterTest {
+
+    private static XMLConfiguration config(String uri, String prefix) {
+        XMLConfiguration config = new XMLConfiguration();
+        config.setProperty("URI", uri);
+        config.setProperty("HandlePrefix", prefix);
+        config.setProperty("status", "production");
+        config.setProperty("hostName", "localhost");
+        config.setProperty("userName", "user");
+        config.setProperty("password", "secret");
+        config.setProperty("transport", "memory");
+        config.setProperty("maxRequestsPerSecond", 50);
+        config.setProperty("maxConcurrent", 4);
+        return config;
+    }
+
+    @Test
+    public void prefixesOfAServerShareItsTransportAndThrottle() throws Exception {
+        try (PIDRouter router = new PIDRouter(Arrays.asList(
+                config("http://pid1.example.org/handles/", "11.T1"),
+                config("http://pid1.example.org/handles/", "11.T2"),
+                config("http://pid2.example.org/handles/", "11.T3")), null)) {
+            PIDService a = router.getService("11.T1");
+            PIDService b = router.getService("11.T2");
+            PIDService c = router.getService("11.T3");
+            assertNotNull(a.getThrottle());
+            assertSame(a.getTransport(), b.getTransport());
+            assertSame(a.getThrottle(), b.getThrottle());
+            assertNotSame(a.getTransport(), c.getTransport());
+            assertNotSame(a.getThrottle(), c.getThrottle());
+        }
+    }
+}
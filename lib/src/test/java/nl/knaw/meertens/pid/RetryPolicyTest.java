@@ -0,0 +1,54 @@
+package nl.knaw.meertens.pid;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+import javax.net.ssl.SSLHandshakeException;
+
+import org.apache.commons.configuration.ConversionException;
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+    private final RetryPolicy retry = new RetryPolicy(3, 10L, 100L, RetryPolicy.DEFAULT_RETRY_ON);
+
+    @Test
+    public void timeoutsAndConnectionProblemsAreRetried() {
+        assertTrue(this.retry.isRetryable(new SocketTimeoutException()));
+        assertTrue(this.retry.isRetryable(new ConnectTimeoutException()));
+        assertTrue(this.retry.isRetryable(new ConnectionPoolTimeoutException()));
+        assertTrue(this.retry.isRetryable(new org.apache.hc.client5.http.ConnectTimeoutException("connect")));
+        assertTrue(this.retry.isRetryable(new ConnectException()));
+        assertTrue(this.retry.isRetryable(new IOException("Connection reset")));
+    }
+
+    @Test
+    public void finalFailuresAreNotRetried() {
+        assertFalse(this.retry.isRetryable(new UnknownHostException("pid.example.org")));
+        assertFalse(this.retry.isRetryable(new SSLHandshakeException("certificate expired")));
+        assertFalse(this.retry.isRetryable(new InterruptedIOException()));
+    }
+
+    @Test
+    public void statusCodes() {
+        assertTrue(this.retry.isRetryable(503));
+        assertFalse(this.retry.isRetryable(404));
+        assertTrue(new RetryPolicy(3, 10L, 100L, " 503 ,429").isRetryable(429));
+    }
+
+    @Test(expected = ConversionException.class)
+    public void invalidRetryOn() {
+        XMLConfiguration config = new XMLConfiguration();
+        config.setProperty("retry.retryOn", "503;429");
+        new RetryPolicy(config);
+    }
+}